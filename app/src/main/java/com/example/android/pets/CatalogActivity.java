@@ -15,14 +15,20 @@
  */
 package com.example.android.pets;
 
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.database.Cursor;
+import android.database.ContentObserver;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.design.widget.FloatingActionButton;
+import android.support.design.widget.Snackbar;
 
 /*
 import android.support.v4.app.LoaderManager;
@@ -31,32 +37,128 @@ import android.support.v4.content.Loader;
 */
 
 import android.app.LoaderManager;
-import android.content.CursorLoader;
 import android.content.Loader;
 
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v4.view.MenuItemCompat;
+import android.support.v7.widget.SearchView;
+import android.text.TextUtils;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
+import android.view.ViewTreeObserver;
+import android.widget.RadioGroup;
 import android.widget.Toast;
 
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetCsvImporter;
+import com.example.android.pets.data.PetWriteQueue;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 
 /**
  * Displays list of pets that were entered and stored in the app.
  */
-public class CatalogActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+public class CatalogActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<PetSnapshot> {
 
     // This is the Adapter being used to display the list's data
-    PetCursorAdapter mPetAdapter;
+    PetAdapter mPetAdapter;
+
+    // Shown when the list has 0 items
+    private View mEmptyView;
 
     // Identifies a particular Loader being used in this component
+    // Page i of the list is loaded by the loader PET_LOADER + i
     private static final int PET_LOADER = 0;
 
+    // Number of pets loaded in one page. The provider prewarms a page of this size.
+    private static final int PAGE_SIZE = PetEntry.CATALOG_PAGE_SIZE;
+
+    // Loader argument: the _ID the page starts after
+    private static final String ARG_AFTER_ID = "after_id";
+
+    // Pages reached so far, in list order. null while a page is loading or out of the window.
+    private final ArrayList<PetSnapshot> mPages = new ArrayList<PetSnapshot>();
+
+    // _ID each page starts after, to load it again when it scrolls back into the window
+    private final ArrayList<Long> mPageAfterIds = new ArrayList<Long>();
+
+    // Pages kept loaded on each side of the visible ones. The others are dropped with their loaders.
+    private static final int PAGE_WINDOW = 2;
+
+    // Pages of the window, Integer.MIN_VALUE until the list scrolls
+    private int mWindowFirstPage = Integer.MIN_VALUE;
+    private int mWindowLastPage = Integer.MIN_VALUE;
+
+    // Maximum number of search results. Search results come in one page, best matches first.
+    private static final int SEARCH_LIMIT = 200;
+
+    // Search results kept for the searches typed next
+    private static final int SEARCH_CACHE_SIZE = 20;
+
+    // Time the user has to stop typing before a search is queried, in milliseconds.
+    // Searches the cache can answer are shown right away.
+    private static final long SEARCH_DELAY_MS = 150;
+
+    // Words typed in the SearchView, split like the provider does, or null when not searching
+    private String mSearchQuery;
+
+    // Text typed in the SearchView, to show it again after a rotation
+    private String mSearchText;
+
+    private final PetSearchCache mSearchCache = new PetSearchCache(SEARCH_CACHE_SIZE, SEARCH_LIMIT);
+
+    private final Handler mHandler = new Handler();
+
+    // Queries mSearchQuery once the user stopped typing
+    private final Runnable mLoadSearch = new Runnable() {
+        @Override
+        public void run() {
+            reloadList();
+        }
+    };
+
+    // Cached search results are stale as soon as a pet changes
+    private final ContentObserver mPetObserver = new ContentObserver(mHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mSearchCache.clear();
+            //A search shown from the cache has no loader to load it again
+            if (mSearchQuery != null && getLoaderManager().getLoader(PET_LOADER) == null) {
+                mHandler.removeCallbacks(mLoadSearch);
+                mHandler.postDelayed(mLoadSearch, SEARCH_DELAY_MS);
+            }
+        }
+    };
+
+    // Gender picked in the filter chips, or null for all of them
+    private Integer mGenderFilter;
+
+    // Weight range picked in the filter chips, null for no bound
+    private Integer mMinWeightFilter;
+    private Integer mMaxWeightFilter;
+
+    // Whether the first page was shown, for the startup time
+    private boolean mFirstPageDrawn;
+
+    // Request code for picking the CSV file to import
+    private static final int REQUEST_IMPORT = 1;
+
+    // Import running, kept over a rotation. null when none is.
+    private ImportTask mImportTask;
+
+    // Saved instance state: the search text and the filters, absent when not set
+    private static final String STATE_SEARCH_TEXT = "search_text";
+    private static final String STATE_GENDER_FILTER = "gender_filter";
+    private static final String STATE_MIN_WEIGHT_FILTER = "min_weight_filter";
+    private static final String STATE_MAX_WEIGHT_FILTER = "max_weight_filter";
+
     /**
      * Tag for the log messages
      */
@@ -78,25 +180,19 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         });
 
 
-        // Find the ListView which will be populated with the pet data
-        ListView petListView = (ListView) findViewById(R.id.list_view_pet);
-
-        // Find and set empty view on the ListView,
-        // so that it only shows when the list has 0 items.
-        View emptyView = findViewById(R.id.empty_view);
-        petListView.setEmptyView(emptyView);
-
-        // 4. Set up empty CursorAdapter we will use to display the loaded data.
-        // We pass null for the cursor, then update it in onLoadFinished()
-        mPetAdapter = new PetCursorAdapter(this, null);
+        // Find the RecyclerView which will be populated with the pet data
+        RecyclerView petRecyclerView = (RecyclerView) findViewById(R.id.recycler_view_pet);
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        petRecyclerView.setLayoutManager(layoutManager);
 
-        //5.Attach CursorAdapter to the ListView
-        petListView.setAdapter(mPetAdapter);
+        // Find the empty view, so that it only shows when the list has 0 items.
+        mEmptyView = findViewById(R.id.empty_view);
 
-        //Set up onItemClickListener
-        petListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        // 4. Set up empty adapter we will use to display the loaded data.
+        // It is empty until a snapshot comes in onLoadFinished()
+        mPetAdapter = new PetAdapter(this, new PetAdapter.OnPetClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
+            public void onPetClick(long id) {
                 //Create Intent from here to EditorActivity
                 Intent toEditIntent = new Intent(CatalogActivity.this, EditorActivity.class);
 
@@ -110,9 +206,105 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             }
         });
 
-        //Initializes the CursorLoader.
+        // Show or hide the empty view whenever the rows change
+        mPetAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                updateEmptyView();
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
+        });
+
+        //5.Attach the adapter to the RecyclerView
+        petRecyclerView.setAdapter(mPetAdapter);
+
+        //Load the next page when the user scrolls close to the end of the loaded ones
+        petRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                updatePageWindow(layoutManager.findFirstVisibleItemPosition(),
+                        layoutManager.findLastVisibleItemPosition());
+                if (layoutManager.findLastVisibleItemPosition()
+                        >= mPetAdapter.getItemCount() - PAGE_SIZE / 2) {
+                    loadNextPage();
+                }
+            }
+        });
+
+        //Search and filters of the list before a rotation. The chips check themselves again,
+        //after onCreate(), and the listeners only reload the list when the filter changes.
+        if (savedInstanceState != null) {
+            mSearchText = savedInstanceState.getString(STATE_SEARCH_TEXT);
+            mSearchQuery = PetSearchCache.getKey(mSearchText);
+            mGenderFilter = getInteger(savedInstanceState, STATE_GENDER_FILTER);
+            mMinWeightFilter = getInteger(savedInstanceState, STATE_MIN_WEIGHT_FILTER);
+            mMaxWeightFilter = getInteger(savedInstanceState, STATE_MAX_WEIGHT_FILTER);
+        }
+
+        //Filter the list with the chips
+        RadioGroup genderChips = (RadioGroup) findViewById(R.id.filter_gender);
+        genderChips.setOnCheckedChangeListener(new RadioGroup.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(RadioGroup group, int checkedId) {
+                Integer genderFilter;
+                switch (checkedId) {
+                    case R.id.filter_gender_male:
+                        genderFilter = PetEntry.GENDER_MALE;
+                        break;
+                    case R.id.filter_gender_female:
+                        genderFilter = PetEntry.GENDER_FEMALE;
+                        break;
+                    case R.id.filter_gender_unknown:
+                        genderFilter = PetEntry.GENDER_UNKNOWN;
+                        break;
+                    default:
+                        genderFilter = null;
+                }
+                setFilters(genderFilter, mMinWeightFilter, mMaxWeightFilter);
+            }
+        });
+        RadioGroup weightChips = (RadioGroup) findViewById(R.id.filter_weight);
+        weightChips.setOnCheckedChangeListener(new RadioGroup.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(RadioGroup group, int checkedId) {
+                switch (checkedId) {
+                    case R.id.filter_weight_light:
+                        setFilters(mGenderFilter, null, 5);
+                        break;
+                    case R.id.filter_weight_medium:
+                        setFilters(mGenderFilter, 6, 20);
+                        break;
+                    case R.id.filter_weight_heavy:
+                        setFilters(mGenderFilter, 21, null);
+                        break;
+                    default:
+                        setFilters(mGenderFilter, null, null);
+                }
+            }
+        });
+
+        getContentResolver().registerContentObserver(PetEntry.CONTENT_URI, true, mPetObserver);
+
+        //Show the progress of an import started before a rotation
+        mImportTask = (ImportTask) getLastCustomNonConfigurationInstance();
+        if (mImportTask != null) {
+            mImportTask.attach(this);
+        }
+
+        //Initializes the loader for the first page.
         //The PET_LOADER value is eventually passed to onCreateLoader();
-        getLoaderManager().initLoader(PET_LOADER, null, this);
+        mPages.add(null);
+        mPageAfterIds.add(0L);
+        initFirstPageLoader();
 
 /*
 どうも、support.v4 を使う場合、getSupportLoaderManager() を使う必要があるらしい。
@@ -125,14 +317,180 @@ import android.support.v4.content.Loader;
 
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(STATE_SEARCH_TEXT, mSearchText);
+        putInteger(outState, STATE_GENDER_FILTER, mGenderFilter);
+        putInteger(outState, STATE_MIN_WEIGHT_FILTER, mMinWeightFilter);
+        putInteger(outState, STATE_MAX_WEIGHT_FILTER, mMaxWeightFilter);
+    }
+
+    private static void putInteger(Bundle bundle, String key, Integer value) {
+        if (value != null) {
+            bundle.putInt(key, value);
+        }
+    }
+
+    private static Integer getInteger(Bundle bundle, String key) {
+        return bundle.containsKey(key) ? Integer.valueOf(bundle.getInt(key)) : null;
+    }
+
+    /**
+     * Start loading the first page, reusing the loader kept over a rotation when it loads
+     * the same list. The loaders of the pages after it are dropped: mPages starts over.
+     */
+    private void initFirstPageLoader() {
+        LoaderManager loaderManager = getLoaderManager();
+        for (int page = 1; loaderManager.getLoader(PET_LOADER + page) != null; page++) {
+            loaderManager.destroyLoader(PET_LOADER + page);
+        }
+
+        PetSnapshotLoader loader = (PetSnapshotLoader) loaderManager.<PetSnapshot>getLoader(PET_LOADER);
+        if (loader != null && !loader.getUri().equals(getListUri(0))) {
+            loaderManager.restartLoader(PET_LOADER, null, this);
+        } else {
+            loaderManager.initLoader(PET_LOADER, null, this);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mHandler.removeCallbacks(mLoadSearch);
+        getContentResolver().unregisterContentObserver(mPetObserver);
+        if (mImportTask != null) {
+            mImportTask.detach();
+        }
+    }
+
+    @Override
+    public Object onRetainCustomNonConfigurationInstance() {
+        return mImportTask;
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+
+        //Search as the user types
+        MenuItem searchItem = menu.findItem(R.id.action_search);
+        SearchView searchView = (SearchView) searchItem.getActionView();
+        searchView.setQueryHint(getString(R.string.search_hint));
+
+        //Show the search kept over a rotation. Expanding clears the text,
+        //so this is done before listening to it.
+        if (mSearchQuery != null) {
+            MenuItemCompat.expandActionView(searchItem);
+            searchView.setQuery(mSearchText, false);
+            searchView.clearFocus();
+        }
+
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                setSearchQuery(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                setSearchQuery(newText);
+                return true;
+            }
+        });
         return true;
     }
 
+    /**
+     * Show the pets matching the query, or the whole catalog if it is empty.
+     * Called for every keystroke. A search the cache can answer is shown in the same frame;
+     * any other is queried once the user stops typing, with the cached pets still
+     * matching shown meanwhile. The query of the search typed over is cancelled.
+     */
+    private void setSearchQuery(String query) {
+        mSearchText = query;
+        String searchQuery = PetSearchCache.getKey(query);
+        if (TextUtils.equals(searchQuery, mSearchQuery)) {
+            return;
+        }
+        mSearchQuery = searchQuery;
+        mHandler.removeCallbacks(mLoadSearch);
+
+        if (searchQuery == null) {
+            reloadList();
+            return;
+        }
+
+        PetSnapshot result = mSearchCache.get(searchQuery);
+        if (result != null) {
+            //Nothing to load. Destroying the loader also cancels the search it was running.
+            getLoaderManager().destroyLoader(PET_LOADER);
+            showSearchResult(result);
+            return;
+        }
+
+        PetSnapshotLoader loader = (PetSnapshotLoader) getLoaderManager().<PetSnapshot>getLoader(PET_LOADER);
+        if (loader != null) {
+            loader.cancelLoad();
+        }
+        PetSnapshot preview = mSearchCache.getPreview(searchQuery);
+        if (preview != null) {
+            showSearchResult(preview);
+        }
+        mHandler.postDelayed(mLoadSearch, SEARCH_DELAY_MS);
+    }
+
+    /**
+     * Show search results that don't come from a loader.
+     */
+    private void showSearchResult(PetSnapshot result) {
+        dropPagesAfter(0);
+        mPages.set(0, result);
+        mPetAdapter.swapPage(0, result);
+    }
+
+    /**
+     * Filter the list with the chips picked, reloading it if they changed.
+     */
+    private void setFilters(Integer genderFilter, Integer minWeightFilter, Integer maxWeightFilter) {
+        if (sameFilter(genderFilter, mGenderFilter) && sameFilter(minWeightFilter, mMinWeightFilter)
+                && sameFilter(maxWeightFilter, mMaxWeightFilter)) {
+            return;
+        }
+        mGenderFilter = genderFilter;
+        mMinWeightFilter = minWeightFilter;
+        mMaxWeightFilter = maxWeightFilter;
+        reloadList();
+    }
+
+    private static boolean sameFilter(Integer a, Integer b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Load the list again from the first page, after the search or the filters changed.
+     */
+    private void reloadList() {
+        dropPagesAfter(0);
+        getLoaderManager().restartLoader(PET_LOADER, null, this);
+    }
+
+    /**
+     * Returns the URI of the pets matching the filter chips, or null when none is picked.
+     */
+    private Uri getFilterUri() {
+        if (mGenderFilter == null && mMinWeightFilter == null && mMaxWeightFilter == null) {
+            return null;
+        }
+        Uri uri = mGenderFilter == null
+                ? PetEntry.CONTENT_WEIGHT_URI
+                : PetEntry.buildGenderUri(mGenderFilter);
+        return PetEntry.buildWeightUri(uri, mMinWeightFilter, mMaxWeightFilter);
+    }
+
     private void insertPet() {
 
         //Define dummy values
@@ -148,22 +506,34 @@ import android.support.v4.content.Loader;
         values.put(PetEntry.COLUMN_PET_GENDER, dummyGender);
         values.put(PetEntry.COLUMN_PET_WEIGHT, dummyWeight);
 
-        //Do activity version insert for a new row
-        Uri mNewUri = getContentResolver().insert(PetEntry.CONTENT_URI, values);
-        int newRowId = (int) ContentUris.parseId(mNewUri);
-
-        Toast.makeText(this, getResources().getString(R.string.insert_dummy)
-                + newRowId, Toast.LENGTH_SHORT).show();
+        //Insert the new row in the background. The list shows it when the provider notifies it.
+        final Context appContext = getApplicationContext();
+        PetWriteQueue.getInstance(this).insert(values, new PetWriteQueue.Callback() {
+            @Override
+            public void onWriteFinished(ContentProviderResult result) {
+                if (result == null || result.uri == null) {
+                    Toast.makeText(appContext, R.string.error_registering, Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                long newRowId = ContentUris.parseId(result.uri);
+                Toast.makeText(appContext, appContext.getString(R.string.insert_dummy)
+                        + newRowId, Toast.LENGTH_SHORT).show();
+            }
+        });
     }
 
     private void deletePet(){
-        int deletedRows = getContentResolver().delete(PetEntry.CONTENT_URI, null, null);
-
-        if (deletedRows == 0) {
-            Toast.makeText(this, getResources().getString(R.string.error_delete), Toast.LENGTH_SHORT).show();
-        } else {
-            Toast.makeText(this, getResources().getString(R.string.delete_success), Toast.LENGTH_SHORT).show();
-        }
+        final Context appContext = getApplicationContext();
+        PetWriteQueue.getInstance(this).delete(PetEntry.CONTENT_URI, new PetWriteQueue.Callback() {
+            @Override
+            public void onWriteFinished(ContentProviderResult result) {
+                if (result == null || result.count == 0) {
+                    Toast.makeText(appContext, R.string.error_delete, Toast.LENGTH_SHORT).show();
+                } else {
+                    Toast.makeText(appContext, R.string.delete_success, Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
     }
 
     private void showDeleteConfirmationDialog() {
@@ -198,6 +568,10 @@ import android.support.v4.content.Loader;
 
         // User clicked on a menu option in the app bar overflow menu
         switch (item.getItemId()) {
+            // Respond to a click on the "Import pets" menu option
+            case R.id.action_import:
+                pickFileToImport();
+                return true;
             // Respond to a click on the "Insert dummy data" menu option
             case R.id.action_insert_dummy_data:
                 insertPet();
@@ -210,45 +584,309 @@ import android.support.v4.content.Loader;
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Let the user pick a CSV file. It is imported in onActivityResult().
+     */
+    private void pickFileToImport() {
+        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("text/*");
+        startActivityForResult(Intent.createChooser(intent, getString(R.string.action_import)),
+                REQUEST_IMPORT);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == REQUEST_IMPORT) {
+            if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+                //The serial executor would hold back the list's diffs until the import ends
+                if (mImportTask != null) {
+                    mImportTask.detach();
+                }
+                mImportTask = new ImportTask(this, data.getData());
+                mImportTask.attach(this);
+                mImportTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            }
+            return;
+        }
+        super.onActivityResult(requestCode, resultCode, data);
+    }
+
+    /**
+     * Imports the pets of a CSV file on a background thread, showing the progress.
+     * The list picks the new pets up through the provider's change notifications.
+     * It outlives a rotation: the new activity attaches itself to show the progress and the result.
+     */
+    private static class ImportTask extends AsyncTask<Void, Integer, PetCsvImporter.Result> {
+
+        private final ContentResolver mResolver;
+        private final Uri mFileUri;
+
+        // Pets imported so far, shown again by a new activity
+        private int mImported;
+
+        // Activity showing the progress, null between a rotation's two activities
+        private CatalogActivity mActivity;
+        private Snackbar mSnackbar;
+
+        ImportTask(Context context, Uri fileUri) {
+            mResolver = context.getApplicationContext().getContentResolver();
+            mFileUri = fileUri;
+        }
+
+        void attach(CatalogActivity activity) {
+            mActivity = activity;
+            mSnackbar = Snackbar.make(activity.findViewById(R.id.recycler_view_pet),
+                    activity.getString(R.string.import_progress, mImported), Snackbar.LENGTH_INDEFINITE);
+            mSnackbar.show();
+        }
+
+        void detach() {
+            mSnackbar.dismiss();
+            mSnackbar = null;
+            mActivity = null;
+        }
+
+        @Override
+        protected PetCsvImporter.Result doInBackground(Void... params) {
+            PetCsvImporter importer = new PetCsvImporter(mResolver);
+            try {
+                InputStream in = mResolver.openInputStream(mFileUri);
+                if (in == null) {
+                    return null;
+                }
+                try {
+                    return importer.importPets(in, new PetCsvImporter.ProgressListener() {
+                        @Override
+                        public void onProgress(int imported, int skipped) {
+                            publishProgress(imported);
+                        }
+                    });
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to import " + mFileUri, e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... imported) {
+            mImported = imported[0];
+            if (mActivity != null) {
+                mSnackbar.setText(mActivity.getString(R.string.import_progress, mImported));
+            }
+        }
+
+        @Override
+        protected void onPostExecute(PetCsvImporter.Result result) {
+            CatalogActivity activity = mActivity;
+            if (activity == null) {
+                return;
+            }
+            detach();
+            activity.mImportTask = null;
+
+            if (result == null) {
+                Toast.makeText(activity, R.string.import_failed, Toast.LENGTH_SHORT).show();
+            } else if (result.failedRecord > 0) {
+                Toast.makeText(activity, activity.getString(R.string.import_stopped,
+                        result.imported, result.skipped, result.failedRecord), Toast.LENGTH_LONG).show();
+            } else {
+                Toast.makeText(activity,
+                        activity.getString(R.string.import_done, result.imported, result.skipped),
+                        Toast.LENGTH_LONG).show();
+            }
+        }
+    }
+
+    /**
+     * Start loading the page after the last loaded one, if there can be one.
+     */
+    private void loadNextPage() {
+        int pageCount = mPages.size();
+        PetSnapshot lastPage = mPages.get(pageCount - 1);
+
+        // Still loading, or the last page is not full so nothing comes after it.
+        // Search results are ranked, not ordered by _ID, so they are never paged.
+        if (mSearchQuery != null || lastPage == null || lastPage.size() < PAGE_SIZE) {
+            return;
+        }
+
+        mPages.add(null);
+        mPageAfterIds.add(lastPage.getLastId());
+        loadPage(pageCount);
+    }
+
+    private void loadPage(int page) {
+        Bundle args = new Bundle();
+        args.putLong(ARG_AFTER_ID, mPageAfterIds.get(page));
+        getLoaderManager().initLoader(PET_LOADER + page, args, this);
+    }
+
+    /**
+     * Keep the pages around the visible rows loaded, and drop the others with their loaders,
+     * so memory stays flat however far the list is scrolled.
+     * A page scrolling back into the window is loaded again from the _ID it starts after.
+     */
+    private void updatePageWindow(int firstPosition, int lastPosition) {
+        //Search results are one page, maybe shown from the cache without a loader
+        if (mSearchQuery != null || firstPosition == RecyclerView.NO_POSITION) {
+            return;
+        }
+        int firstPage = mPetAdapter.getPageAt(firstPosition) - PAGE_WINDOW;
+        int lastPage = mPetAdapter.getPageAt(lastPosition) + PAGE_WINDOW;
+        if (firstPage == mWindowFirstPage && lastPage == mWindowLastPage) {
+            return;
+        }
+        mWindowFirstPage = firstPage;
+        mWindowLastPage = lastPage;
+
+        LoaderManager loaderManager = getLoaderManager();
+        for (int page = 0; page < mPages.size(); page++) {
+            boolean loading = loaderManager.getLoader(PET_LOADER + page) != null;
+            if (page < firstPage || page > lastPage) {
+                if (loading) {
+                    mPages.set(page, null);
+                    loaderManager.destroyLoader(PET_LOADER + page);
+                    mPetAdapter.unloadPage(page);
+                }
+            } else if (!loading) {
+                loadPage(page);
+            }
+        }
+    }
+
+    private void updateEmptyView() {
+        mEmptyView.setVisibility(mPetAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+    }
+
     /**
      * Called when a new Loader needs to be created
      *
      * @param loaderID contains the ID value passed to the initLoader() call.
      */
     @Override
-    public Loader<Cursor> onCreateLoader(int loaderID, Bundle bundle) {
-        //1. define projection
-        //Note: _ID must be included. CursorAdapter assumes the Cursor contains a column called _ID
-        String[] mProjection = {
-                PetEntry._ID,
-                PetEntry.COLUMN_PET_NAME,
-                PetEntry.COLUMN_PET_BREED
-        };
+    public Loader<PetSnapshot> onCreateLoader(int loaderID, Bundle bundle) {
+        //1. define projection, the one the provider prewarms
+        //Note: _ID must be included. The adapter uses it as the stable ID of a row
+        String[] mProjection = PetEntry.CATALOG_PROJECTION;
+
+        //The first page has no arguments and starts from the beginning
+        long afterId = bundle == null ? 0 : bundle.getLong(ARG_AFTER_ID);
 
         //This loader will execute the ContentProvider's query method on a background thread
-        return new CursorLoader(
+        return new PetSnapshotLoader(
                 this,                 // Parent activity context
-                PetEntry.CONTENT_URI,        // Provider content URI to query
-                mProjection,     // Columns to include in the resulting Cursor
-                null,            // No selection clause
-                null,            // No selection arguments
-                null             // Default sort order
+                getListUri(afterId),        // Provider content URI to query
+                mProjection     // Columns to include in the snapshot
         );
     }
 
+    /**
+     * Returns the URI of the page of the list starting after the given _ID.
+     */
+    private Uri getListUri(long afterId) {
+        //Pages by _ID, filtered pages by weight, search results by rank.
+        //A search looks through all the pets, whatever the filters.
+        Uri filterUri = getFilterUri();
+        if (mSearchQuery != null) {
+            return PetEntry.buildSearchUri(mSearchQuery, SEARCH_LIMIT);
+        } else if (filterUri != null) {
+            return PetEntry.buildPageUri(filterUri, afterId, PAGE_SIZE);
+        } else {
+            return PetEntry.buildPageUri(afterId, PAGE_SIZE);
+        }
+    }
+
     //Called when a previously created loader has finished loading
     @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+    public void onLoadFinished(Loader<PetSnapshot> loader, PetSnapshot snapshot) {
+
+        int page = loader.getId() - PET_LOADER;
+        if (page >= mPages.size()) {
+            return;
+        }
+
+        //Keep every search result for the searches typed next. Only show the wanted list:
+        //a load that finished right as the user typed on belongs to the previous one.
+        String searchQuery = getSearchQuery((PetSnapshotLoader) loader);
+        if (searchQuery != null) {
+            mSearchCache.put(searchQuery, snapshot);
+        }
+        if (!TextUtils.equals(searchQuery, mSearchQuery)) {
+            return;
+        }
+
+        //A page can be reloaded after a change. If it now ends on another row than the one
+        //the next page starts after, the pages after it don't line up anymore.
+        //Drop them and load them again while scrolling.
+        mPages.set(page, snapshot);
+        if (page < mPages.size() - 1
+                && (snapshot.size() == 0 || snapshot.getLastId() != mPageAfterIds.get(page + 1))) {
+            dropPagesAfter(page);
+        }
+
+        //The adapter only rebinds the rows of the page that changed
+        mPetAdapter.swapPage(page, snapshot);
+
+        if (page == 0 && !mFirstPageDrawn) {
+            mFirstPageDrawn = true;
+            reportWhenDrawn();
+        }
+    }
+
+    /**
+     * Returns the search words of a loader of search results, or null if it loads pages.
+     */
+    private static String getSearchQuery(PetSnapshotLoader loader) {
+        Uri uri = loader.getUri();
+        if (!PetEntry.CONTENT_SEARCH_URI.getPath().equals(uri.getPath())) {
+            return null;
+        }
+        return uri.getQueryParameter(PetEntry.QUERY_PARAM_SEARCH);
+    }
+
+    /**
+     * Report the startup time once the first page is on screen, on the next frame.
+     */
+    private void reportWhenDrawn() {
+        final View list = findViewById(R.id.recycler_view_pet);
+        list.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                list.getViewTreeObserver().removeOnPreDrawListener(this);
+                PetApplication.onFirstListDrawn(CatalogActivity.this);
+                return true;
+            }
+        });
+    }
 
-        //mPetAdapters cursor is swapped from null to loaded cursor.
-        //The framework will take care of closing the old cursor once we return
-        mPetAdapter.swapCursor(cursor);
+    /**
+     * Forget the pages after the given one and destroy their loaders.
+     */
+    private void dropPagesAfter(int page) {
+        for (int i = mPages.size() - 1; i > page; i--) {
+            mPages.remove(i);
+            mPageAfterIds.remove(i);
+            getLoaderManager().destroyLoader(PET_LOADER + i);
+        }
+        mPetAdapter.removePagesAfter(page);
+
+        //Load the pages of the new window on the next scroll
+        mWindowFirstPage = Integer.MIN_VALUE;
+        mWindowLastPage = Integer.MIN_VALUE;
     }
 
-    //Called when the last Cursor provided to onLoadFinished() above is about to be closed.
-    //We need to make sure we are no longer use it.
+    //Called when a loader is reset. Snapshots are copies, so the adapter can go on showing its
+    //page until it is unloaded or replaced.
     @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
-        mPetAdapter.swapCursor(null);
+    public void onLoaderReset(Loader<PetSnapshot> loader) {
+        int page = loader.getId() - PET_LOADER;
+        //The loader replaced by restartLoader() is reset once the new one delivered
+        if (page < mPages.size() && getLoaderManager().getLoader(loader.getId()) == null) {
+            mPages.set(page, null);
+        }
     }
 }
@@ -16,8 +16,9 @@
 package com.example.android.pets;
 
 import android.app.LoaderManager;
-import android.content.ContentUris;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -41,6 +42,7 @@ import android.widget.Spinner;
 import android.widget.Toast;
 
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetWriteQueue;
 
 
 /**
@@ -202,38 +204,39 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
 
 
+        //The write runs in the background, and its result comes back after this
+        //activity is finished. Toast with the application context.
+        final Context appContext = getApplicationContext();
+
         if (mCurrentPetUri == null) {
-            //4.get ContentResolver and make it insert data
-            Uri newUri = getContentResolver().insert(PetEntry.CONTENT_URI, values);
-
-            //※※ ユーザーに、登録の成否を伝えるのは This is a really critical app-building skill.
-            //Toast if insert data was successful
-            if (newUri == null) {
-                Toast.makeText(this, getResources().getString(R.string.error_registering),
-                        Toast.LENGTH_SHORT).show();
-            } else {
-                Toast.makeText(this, getResources().getString(R.string.pet_register_success),
-                        Toast.LENGTH_SHORT).show();
-            }
+            //4.queue the insert of the new pet
+            PetWriteQueue.getInstance(this).insert(values, new PetWriteQueue.Callback() {
+                @Override
+                public void onWriteFinished(ContentProviderResult result) {
+                    //※※ ユーザーに、登録の成否を伝えるのは This is a really critical app-building skill.
+                    //Toast if insert data was successful
+                    if (result == null || result.uri == null) {
+                        Toast.makeText(appContext, R.string.error_registering, Toast.LENGTH_SHORT).show();
+                    } else {
+                        Toast.makeText(appContext, R.string.pet_register_success, Toast.LENGTH_SHORT).show();
+                    }
+                }
+            });
         } else {
-            //4.get ContentResolver and make it update data
-            //Pass in null for the selection and selectionArgs.
-            //Because mCurrentPetUri already identify target row to modify.
-            int mUpdatedRows = getContentResolver().update(
-                    mCurrentPetUri,
-                    values,
-                    null,
-                    null);
-
-            //※※ ユーザーに、登録の成否を伝えるのは This is a really critical app-building skill.
-            //Toast if insert data was successful
-            if (mUpdatedRows == 0) {
-                Toast.makeText(this, getResources().getString(R.string.update_failed),
-                        Toast.LENGTH_SHORT).show();
-            } else {
-                Toast.makeText(this, getResources().getString(R.string.update_succeed),
-                        Toast.LENGTH_SHORT).show();
-            }
+            //4.queue the update
+            //mCurrentPetUri already identify target row to modify.
+            PetWriteQueue.getInstance(this).update(mCurrentPetUri, values, new PetWriteQueue.Callback() {
+                @Override
+                public void onWriteFinished(ContentProviderResult result) {
+                    //※※ ユーザーに、登録の成否を伝えるのは This is a really critical app-building skill.
+                    //Toast if update was successful
+                    if (result == null || result.count == 0) {
+                        Toast.makeText(appContext, R.string.update_failed, Toast.LENGTH_SHORT).show();
+                    } else {
+                        Toast.makeText(appContext, R.string.update_succeed, Toast.LENGTH_SHORT).show();
+                    }
+                }
+            });
         }
     }
 
@@ -404,13 +407,18 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
         //編集画面じゃなかったら、delete ボタンが出ないはずなのに、ここでもチェックする効用は何？
         if(mCurrentPetUri != null){
-            int deletedRows = getContentResolver().delete(mCurrentPetUri, null, null);
-
-            if (deletedRows == 0) {
-                Toast.makeText(this, getResources().getString(R.string.error_delete), Toast.LENGTH_SHORT).show();
-            } else {
-                Toast.makeText(this, getResources().getString(R.string.delete_success), Toast.LENGTH_SHORT).show();
-            }
+            //This activity is finished when the result comes back
+            final Context appContext = getApplicationContext();
+            PetWriteQueue.getInstance(this).delete(mCurrentPetUri, new PetWriteQueue.Callback() {
+                @Override
+                public void onWriteFinished(ContentProviderResult result) {
+                    if (result == null || result.count == 0) {
+                        Toast.makeText(appContext, R.string.error_delete, Toast.LENGTH_SHORT).show();
+                    } else {
+                        Toast.makeText(appContext, R.string.delete_success, Toast.LENGTH_SHORT).show();
+                    }
+                }
+            });
         }
     }
 
@@ -0,0 +1,349 @@
+package com.example.android.pets;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.util.ListUpdateCallback;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link PetAdapter} is an adapter for a {@link RecyclerView}
+ * that shows the pets of the list page by page, each page a {@link PetSnapshot}.
+ * A page can be unloaded: it keeps its rows, shown empty, until it is loaded again.
+ * When a new snapshot of a page comes in, the difference with the shown one is computed on a
+ * background thread, and only the rows of that page that changed are bound again.
+ */
+public class PetAdapter extends RecyclerView.Adapter<PetAdapter.PetViewHolder> {
+
+    private static final String LOG_TAG = PetAdapter.class.getSimpleName();
+
+    /**
+     * Listener for clicks on a pet of the list.
+     */
+    public interface OnPetClickListener {
+        void onPetClick(long id);
+    }
+
+    private final OnPetClickListener mListener;
+
+    // Shown when a pet has no breed
+    private final String mUnknownBreed;
+
+    // Pages the list shows, in order. null for an unloaded page.
+    private final ArrayList<PetSnapshot> mPages = new ArrayList<PetSnapshot>();
+
+    // Number of rows of each page, kept while a page is unloaded
+    private final ArrayList<Integer> mPageSizes = new ArrayList<Integer>();
+
+    // Position of the first row of each page, and the row count. Computed again when a size changes.
+    private int[] mPageStarts = new int[0];
+    private int mItemCount;
+
+    // Diff running, and the snapshots of the pages to show after it, in the order they came
+    private DiffTask mDiffTask;
+    private final LinkedHashMap<Integer, PetSnapshot> mPendingPages = new LinkedHashMap<Integer, PetSnapshot>();
+
+    /**
+     * Constructs a new {@link PetAdapter}.
+     *
+     * @param context  The context
+     * @param listener Called when a pet is clicked
+     */
+    public PetAdapter(Context context, OnPetClickListener listener) {
+        mListener = listener;
+        mUnknownBreed = context.getString(R.string.unknown_breed);
+
+        // Rows keep their views when the list changes around them
+        setHasStableIds(true);
+    }
+
+    /**
+     * Show the given snapshot as the page. A page after the last one is added.
+     * Rows are updated once the difference with the shown page is known.
+     * If snapshots of a page come in faster than that, only the last one is shown.
+     */
+    public void swapPage(int page, PetSnapshot snapshot) {
+        if (snapshot == null) {
+            snapshot = PetSnapshot.EMPTY;
+        }
+        if (mDiffTask != null) {
+            mPendingPages.put(page, snapshot);
+            return;
+        }
+        while (mPages.size() < page) {
+            addPage(null, 0);
+        }
+        PetSnapshot oldSnapshot = page < mPages.size() ? mPages.get(page) : null;
+        int oldSize = page < mPages.size() ? mPageSizes.get(page) : 0;
+        mDiffTask = new DiffTask(page, oldSnapshot, oldSize, snapshot);
+        mDiffTask.execute();
+    }
+
+    /**
+     * Let go of the snapshot of the page. Its rows stay, empty, until it is swapped in again.
+     */
+    public void unloadPage(int page) {
+        mPendingPages.remove(page);
+        if (mDiffTask != null && mDiffTask.mPage == page) {
+            mDiffTask.mDropped = true;
+        }
+        if (page < mPages.size() && mPages.get(page) != null) {
+            mPages.set(page, null);
+            notifyItemRangeChanged(mPageStarts[page], mPageSizes.get(page));
+        }
+    }
+
+    /**
+     * Remove the pages after the given one, with their rows.
+     */
+    public void removePagesAfter(int page) {
+        for (Integer pendingPage : new ArrayList<Integer>(mPendingPages.keySet())) {
+            if (pendingPage > page) {
+                mPendingPages.remove(pendingPage);
+            }
+        }
+        if (mDiffTask != null && mDiffTask.mPage > page) {
+            mDiffTask.mDropped = true;
+        }
+        if (page + 1 >= mPages.size()) {
+            return;
+        }
+
+        int start = mPageStarts[page + 1];
+        int removed = mItemCount - start;
+        while (mPages.size() > page + 1) {
+            mPages.remove(mPages.size() - 1);
+            mPageSizes.remove(mPageSizes.size() - 1);
+        }
+        updatePageStarts();
+        notifyItemRangeRemoved(start, removed);
+    }
+
+    /**
+     * Returns the page of the row at the given position.
+     */
+    public int getPageAt(int position) {
+        int page = Arrays.binarySearch(mPageStarts, position);
+        if (page < 0) {
+            //Between two starts: the page starting before the position
+            page = -page - 2;
+        }
+        //Empty pages start where the next one does, the row is in the last of them
+        while (page + 1 < mPageStarts.length && mPageStarts[page + 1] == position) {
+            page++;
+        }
+        return Math.max(page, 0);
+    }
+
+    private void addPage(PetSnapshot snapshot, int size) {
+        mPages.add(snapshot);
+        mPageSizes.add(size);
+        updatePageStarts();
+    }
+
+    private void updatePageStarts() {
+        mPageStarts = new int[mPages.size()];
+        int start = 0;
+        for (int page = 0; page < mPageStarts.length; page++) {
+            mPageStarts[page] = start;
+            start += mPageSizes.get(page);
+        }
+        mItemCount = start;
+    }
+
+    @Override
+    public PetViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.list_item, parent, false);
+        return new PetViewHolder(view);
+    }
+
+    /**
+     * This method binds the pet data at the given position to the list item layout
+     * held by the view holder. The row of an unloaded page is bound empty.
+     */
+    @Override
+    public void onBindViewHolder(PetViewHolder holder, int position) {
+        int page = getPageAt(position);
+        PetSnapshot snapshot = mPages.get(page);
+        if (snapshot == null) {
+            holder.mNameTextView.setText(null);
+            holder.mBreedTextView.setText(null);
+            return;
+        }
+        int row = position - mPageStarts[page];
+        String petBreed = snapshot.getBreed(row);
+
+        //Check if the petBreed is empty
+        if (TextUtils.isEmpty(petBreed)) {
+            petBreed = mUnknownBreed;
+        }
+
+        holder.mNameTextView.setText(snapshot.getName(row));
+        holder.mBreedTextView.setText(petBreed);
+    }
+
+    @Override
+    public int getItemCount() {
+        return mItemCount;
+    }
+
+    /**
+     * Returns the _ID of the pet, or a negative ID for a row of an unloaded page.
+     */
+    @Override
+    public long getItemId(int position) {
+        int page = getPageAt(position);
+        PetSnapshot snapshot = mPages.get(page);
+        return snapshot == null ? -1 - position : snapshot.getId(position - mPageStarts[page]);
+    }
+
+    /**
+     * Holds the views of one list item, so they are looked up only when the item is created.
+     */
+    class PetViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+
+        final TextView mNameTextView;
+        final TextView mBreedTextView;
+
+        PetViewHolder(View itemView) {
+            super(itemView);
+            mNameTextView = (TextView) itemView.findViewById(R.id.name);
+            mBreedTextView = (TextView) itemView.findViewById(R.id.summary);
+            itemView.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View view) {
+            int position = getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION && getItemId(position) >= 0) {
+                mListener.onPetClick(getItemId(position));
+            }
+        }
+    }
+
+    /**
+     * Computes the difference between two snapshots of a page on a background thread,
+     * then shows the new one. The rows of an unloaded page match none of the new ones.
+     */
+    private class DiffTask extends AsyncTask<Void, Void, DiffUtil.DiffResult> {
+
+        private final int mPage;
+        private final PetSnapshot mOldSnapshot;
+        private final int mOldSize;
+        private final PetSnapshot mNewSnapshot;
+
+        // Set when the page was removed or unloaded while computing
+        private boolean mDropped;
+
+        DiffTask(int page, PetSnapshot oldSnapshot, int oldSize, PetSnapshot newSnapshot) {
+            mPage = page;
+            mOldSnapshot = oldSnapshot;
+            mOldSize = oldSize;
+            mNewSnapshot = newSnapshot;
+        }
+
+        @Override
+        protected DiffUtil.DiffResult doInBackground(Void... params) {
+            //Rows are in _ID order or rank order, they never move, so don't look for moves
+            return DiffUtil.calculateDiff(new DiffUtil.Callback() {
+                @Override
+                public int getOldListSize() {
+                    return mOldSize;
+                }
+
+                @Override
+                public int getNewListSize() {
+                    return mNewSnapshot.size();
+                }
+
+                @Override
+                public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+                    return mOldSnapshot != null
+                            && mOldSnapshot.getId(oldItemPosition) == mNewSnapshot.getId(newItemPosition);
+                }
+
+                @Override
+                public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+                    return TextUtils.equals(mOldSnapshot.getName(oldItemPosition),
+                            mNewSnapshot.getName(newItemPosition))
+                            && TextUtils.equals(mOldSnapshot.getBreed(oldItemPosition),
+                            mNewSnapshot.getBreed(newItemPosition));
+                }
+            }, false);
+        }
+
+        @Override
+        protected void onPostExecute(DiffUtil.DiffResult diffResult) {
+            mDiffTask = null;
+            if (!mDropped) {
+                boolean added = mPage == mPages.size();
+                PetSnapshot shown = added ? null : mPages.get(mPage);
+                int shownSize = added ? 0 : mPageSizes.get(mPage);
+                if (shown != mOldSnapshot || shownSize != mOldSize) {
+                    //Changed meanwhile: compute again from the rows shown now
+                    if (!mPendingPages.containsKey(mPage)) {
+                        mPendingPages.put(mPage, mNewSnapshot);
+                    }
+                } else {
+                    if (added) {
+                        addPage(mNewSnapshot, mNewSnapshot.size());
+                    } else {
+                        mPages.set(mPage, mNewSnapshot);
+                        mPageSizes.set(mPage, mNewSnapshot.size());
+                        updatePageStarts();
+                    }
+                    diffResult.dispatchUpdatesTo(new PageUpdateCallback(mPageStarts[mPage]));
+                }
+            }
+
+            //Newer snapshots came in while computing. Go on from the pages just shown.
+            if (!mPendingPages.isEmpty()) {
+                Map.Entry<Integer, PetSnapshot> pending = mPendingPages.entrySet().iterator().next();
+                mPendingPages.remove(pending.getKey());
+                swapPage(pending.getKey(), pending.getValue());
+            }
+        }
+    }
+
+    /**
+     * Passes the updates of a page on to the adapter, at the position of the page.
+     */
+    private class PageUpdateCallback implements ListUpdateCallback {
+
+        private final int mStart;
+
+        PageUpdateCallback(int start) {
+            mStart = start;
+        }
+
+        @Override
+        public void onInserted(int position, int count) {
+            notifyItemRangeInserted(mStart + position, count);
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            notifyItemRangeRemoved(mStart + position, count);
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            notifyItemMoved(mStart + fromPosition, mStart + toPosition);
+        }
+
+        @Override
+        public void onChanged(int position, int count, Object payload) {
+            notifyItemRangeChanged(mStart + position, count, payload);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.android.pets;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Measures how long the app takes to start, from the start of the process
+ * to the first page of the catalog on screen.
+ */
+public class PetApplication extends Application {
+
+    private static final String LOG_TAG = PetApplication.class.getSimpleName();
+
+    // SystemClock.elapsedRealtime() when the process started
+    private static long sStartRealtime;
+
+    // The time is only reported for the first list of the process, later ones are not cold starts
+    private static boolean sFirstListDrawn;
+
+    @Override
+    protected void attachBaseContext(Context base) {
+        super.attachBaseContext(base);
+
+        //This runs before the content providers are created.
+        //Since Nougat the system also knows when the process itself was forked.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            sStartRealtime = Process.getStartElapsedRealtime();
+        } else {
+            sStartRealtime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Call on the main thread when the catalog drew its first page.
+     * Logs the time since the process started, and tells the system the activity is
+     * fully drawn, so the time also shows up as "Fully drawn" in the log and in systrace.
+     */
+    static void onFirstListDrawn(Activity activity) {
+        if (sFirstListDrawn) {
+            return;
+        }
+        sFirstListDrawn = true;
+
+        Log.i(LOG_TAG, "Time to first list render: "
+                + (SystemClock.elapsedRealtime() - sStartRealtime) + " ms");
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            activity.reportFullyDrawn();
+        }
+    }
+}
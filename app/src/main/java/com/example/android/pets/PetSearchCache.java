@@ -0,0 +1,86 @@
+package com.example.android.pets;
+
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * {@link PetSearchCache} keeps the results of the last searches of the catalog, keyed by
+ * their words. A search that only adds letters or words to a cached one matches a subset
+ * of its pets: "terr" matches some of the pets "ter" matched. When the cached result holds
+ * all of its matches, the new one is filtered from it instead of querying the provider.
+ * Only use it on the main thread, and clear it whenever the pets change.
+ */
+final class PetSearchCache {
+
+    private final LruCache<String, PetSnapshot> mResults;
+
+    // Limit of the search queries. A result with fewer pets holds all the matches.
+    private final int mLimit;
+
+    /**
+     * @param maxSearches number of search results kept
+     * @param limit       the limit of the search URIs whose results are put in
+     */
+    PetSearchCache(int maxSearches, int limit) {
+        mResults = new LruCache<String, PetSnapshot>(maxSearches);
+        mLimit = limit;
+    }
+
+    /**
+     * Returns the key of the search text: its words, split like the provider does.
+     * Texts that search for the same pets have the same key. null if there are no words.
+     */
+    static String getKey(String searchText) {
+        String[] words = PetEntry.splitSearchWords(searchText);
+        return words.length == 0 ? null : TextUtils.join(" ", words);
+    }
+
+    void put(String key, PetSnapshot result) {
+        mResults.put(key, result);
+    }
+
+    /**
+     * Returns the result of the search, cached or filtered from the result of a shorter search.
+     * null if it must be queried.
+     */
+    PetSnapshot get(String key) {
+        return find(key, true);
+    }
+
+    /**
+     * Returns the pets of the longest cached shorter search that match this one, to show while
+     * the search is queried. They are the best matches only if that result was complete.
+     * null if no shorter search is cached.
+     */
+    PetSnapshot getPreview(String key) {
+        return find(key, false);
+    }
+
+    private PetSnapshot find(String key, boolean complete) {
+        PetSnapshot result = mResults.get(key);
+        if (result != null) {
+            return result;
+        }
+
+        //Any prefix of the key is the key of a search matching more pets
+        String[] words = PetEntry.splitSearchWords(key);
+        for (int length = key.length() - 1; length > 0; length--) {
+            PetSnapshot shorter = mResults.get(key.substring(0, length));
+            if (shorter == null || complete && shorter.size() >= mLimit) {
+                continue;
+            }
+            result = shorter.search(words);
+            if (shorter.size() < mLimit) {
+                mResults.put(key, result);
+            }
+            return result;
+        }
+        return null;
+    }
+
+    void clear() {
+        mResults.evictAll();
+    }
+}
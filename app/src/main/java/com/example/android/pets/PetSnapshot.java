@@ -0,0 +1,220 @@
+package com.example.android.pets;
+
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * {@link PetSnapshot} is an immutable copy of the pets shown in the catalog list.
+ * It is read from a {@link Cursor} on a background thread, so the list can bind rows
+ * and compute differences between two snapshots without touching a cursor.
+ */
+final class PetSnapshot {
+
+    static final PetSnapshot EMPTY = new PetSnapshot(new long[0], new String[0], new String[0]);
+
+    private final long[] mIds;
+    private final String[] mNames;
+    private final String[] mBreeds;
+
+    private PetSnapshot(long[] ids, String[] names, String[] breeds) {
+        mIds = ids;
+        mNames = names;
+        mBreeds = breeds;
+    }
+
+    /**
+     * Read all the rows of the cursor. The cursor must have the _ID, name and breed columns.
+     */
+    static PetSnapshot fromCursor(Cursor cursor) {
+        int count = cursor.getCount();
+        long[] ids = new long[count];
+        String[] names = new String[count];
+        String[] breeds = new String[count];
+
+        //Look the columns up once, not for every row
+        int idColumnIndex = cursor.getColumnIndexOrThrow(PetEntry._ID);
+        int nameColumnIndex = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME);
+        int breedColumnIndex = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_BREED);
+
+        cursor.moveToPosition(-1);
+        for (int i = 0; i < count && cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(idColumnIndex);
+            names[i] = cursor.getString(nameColumnIndex);
+            breeds[i] = cursor.getString(breedColumnIndex);
+        }
+        return new PetSnapshot(ids, names, breeds);
+    }
+
+    /**
+     * Returns a copy of this page of pets with the changed pets replaced, added or removed.
+     * The page is ordered by _ID and holds at most limit pets.
+     * changedRows holds the changed pets that still belong to the page; a changed pet
+     * missing from it was deleted or left the page.
+     * Returns null if the page can't be patched and must be loaded again.
+     */
+    PetSnapshot patch(long[] changedIds, PetSnapshot changedRows, int limit) {
+        boolean full = size() >= limit;
+
+        TreeMap<Long, String[]> rows = new TreeMap<Long, String[]>();
+        for (int i = 0; i < size(); i++) {
+            rows.put(mIds[i], new String[] { mNames[i], mBreeds[i] });
+        }
+
+        for (long id : changedIds) {
+            int changedPosition = changedRows.indexOf(id);
+            if (changedPosition >= 0) {
+                // A full page ends at its last pet, newer ones belong to the next page
+                if (full && id > getLastId() && !rows.containsKey(id)) {
+                    continue;
+                }
+                rows.put(id, new String[] {
+                        changedRows.getName(changedPosition), changedRows.getBreed(changedPosition) });
+            } else if (rows.remove(id) != null && full) {
+                // The page would now take a pet from the next page, which we don't have
+                return null;
+            }
+        }
+
+        if (rows.size() > limit) {
+            return null;
+        }
+
+        long[] ids = new long[rows.size()];
+        String[] names = new String[rows.size()];
+        String[] breeds = new String[rows.size()];
+        int i = 0;
+        for (Map.Entry<Long, String[]> row : rows.entrySet()) {
+            ids[i] = row.getKey();
+            names[i] = row.getValue()[0];
+            breeds[i] = row.getValue()[1];
+            i++;
+        }
+        return new PetSnapshot(ids, names, breeds);
+    }
+
+    /**
+     * Returns the pets of this snapshot that match the search words, ordered like the
+     * provider's search: pets whose name starts with the first word first, then by name.
+     * Like the full-text index, every word must match the start of a word in the name or the breed.
+     *
+     * @param words search words as split by {@link PetEntry#splitSearchWords(String)}
+     */
+    PetSnapshot search(final String[] words) {
+        Integer[] matches = new Integer[size()];
+        int count = 0;
+        for (int i = 0; i < size(); i++) {
+            boolean match = true;
+            for (int w = 0; w < words.length && match; w++) {
+                match = hasWordStartingWith(mNames[i], words[w]) || hasWordStartingWith(mBreeds[i], words[w]);
+            }
+            if (match) {
+                matches[count++] = i;
+            }
+        }
+
+        //The provider sorts with "name LIKE 'word%'"
+        Arrays.sort(matches, 0, count, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                boolean aFirst = words.length > 0 && startsWithIgnoreCase(mNames[a], words[0]);
+                boolean bFirst = words.length > 0 && startsWithIgnoreCase(mNames[b], words[0]);
+                if (aFirst != bFirst) {
+                    return aFirst ? -1 : 1;
+                }
+                return compareNames(mNames[a], mNames[b]);
+            }
+        });
+
+        long[] ids = new long[count];
+        String[] names = new String[count];
+        String[] breeds = new String[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = mIds[matches[i]];
+            names[i] = mNames[matches[i]];
+            breeds[i] = mBreeds[matches[i]];
+        }
+        return new PetSnapshot(ids, names, breeds);
+    }
+
+    /**
+     * Whether a word of the text starts with the given search word.
+     * The text is split into words like the full-text index does.
+     */
+    private static boolean hasWordStartingWith(String text, String word) {
+        if (text == null) {
+            return false;
+        }
+        for (String textWord : PetEntry.splitSearchWords(text)) {
+            if (textWord.startsWith(word)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static char toLowerCaseAscii(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    // Like LIKE, which also only ignores the case of ASCII letters
+    private static boolean startsWithIgnoreCase(String text, String prefix) {
+        if (text == null || text.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (toLowerCaseAscii(text.charAt(i)) != toLowerCaseAscii(prefix.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Nulls first, like SQLite
+    private static int compareNames(String a, String b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        return a.compareTo(b);
+    }
+
+    /**
+     * Returns the position of the pet with the given _ID, or -1.
+     */
+    int indexOf(long id) {
+        for (int i = 0; i < mIds.length; i++) {
+            if (mIds[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    int size() {
+        return mIds.length;
+    }
+
+    long getId(int position) {
+        return mIds[position];
+    }
+
+    String getName(int position) {
+        return mNames[position];
+    }
+
+    String getBreed(int position) {
+        return mBreeds[position];
+    }
+
+    /**
+     * Returns the _ID of the last pet. The snapshot must not be empty.
+     */
+    long getLastId() {
+        return mIds[mIds.length - 1];
+    }
+}
@@ -0,0 +1,278 @@
+package com.example.android.pets;
+
+import android.annotation.TargetApi;
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.OperationCanceledException;
+import android.text.TextUtils;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@link PetSnapshotLoader} queries the pets at a content URI on a background thread
+ * and delivers them as a {@link PetSnapshot}.
+ * Unlike CursorLoader it doesn't hold a Cursor open, so the UI never reads from one.
+ * It loads again when the data at the URI changes. For a page of pets, when the provider
+ * notifies the URIs of single pets, only those pets are queried and patched into the page.
+ * Since Jelly Bean a cancelled load also stops its query in the provider.
+ */
+class PetSnapshotLoader extends AsyncTaskLoader<PetSnapshot> {
+
+    // More changed pets than this and the whole page is loaded again
+    private static final int MAX_PATCHED_PETS = 50;
+
+    private final PetObserver mObserver = new PetObserver();
+
+    private final Uri mUri;
+    private final String[] mProjection;
+
+    // Size of the page at mUri, or -1 if it is not a page in _ID order and can't be patched
+    private final int mLimit;
+
+    // Last delivered snapshot. Read by loadInBackground() to patch it.
+    private volatile PetSnapshot mSnapshot;
+
+    private boolean mObserving;
+
+    // Signal of the query running in loadInBackground(), guarded by this
+    private CancellationSignal mCancellationSignal;
+
+    // Pets notified since the last load started, guarded by itself.
+    // mReloadAll is set when a change was not about single pets.
+    private final Set<Long> mChangedIds = new HashSet<Long>();
+    private boolean mReloadAll;
+
+    /**
+     * Constructs a new {@link PetSnapshotLoader}.
+     *
+     * @param context    The context
+     * @param uri        The content URI to query
+     * @param projection Columns to query. Must include _ID, name and breed.
+     */
+    PetSnapshotLoader(Context context, Uri uri, String[] projection) {
+        super(context);
+        mUri = uri;
+        mProjection = projection;
+
+        //Filtered pages are ordered by weight, a change can move a pet anywhere in them
+        String limit = uri.getQueryParameter(PetEntry.QUERY_PARAM_LIMIT);
+        boolean petsPage = uri.getPath().equals(PetEntry.CONTENT_URI.getPath());
+        mLimit = petsPage && uri.getQueryParameter(PetEntry.QUERY_PARAM_AFTER) != null && limit != null
+                ? Integer.parseInt(limit) : -1;
+    }
+
+    /**
+     * Runs on a worker thread.
+     */
+    @Override
+    public PetSnapshot loadInBackground() {
+        long[] changedIds = null;
+        synchronized (mChangedIds) {
+            if (!mReloadAll && !mChangedIds.isEmpty() && mChangedIds.size() <= MAX_PATCHED_PETS) {
+                changedIds = new long[mChangedIds.size()];
+                int i = 0;
+                for (long id : mChangedIds) {
+                    changedIds[i++] = id;
+                }
+            }
+            mChangedIds.clear();
+            mReloadAll = false;
+        }
+
+        PetSnapshot snapshot = mSnapshot;
+        if (changedIds != null && snapshot != null && mLimit > 0) {
+            PetSnapshot patched = patch(snapshot, changedIds);
+            if (patched != null) {
+                return patched;
+            }
+        }
+        return query(null);
+    }
+
+    /**
+     * Query only the changed pets that belong to the page, and patch them into the snapshot.
+     * Returns null if the page must be loaded again.
+     */
+    private PetSnapshot patch(PetSnapshot snapshot, long[] changedIds) {
+        StringBuilder selection = new StringBuilder(PetEntry._ID + " IN (");
+        for (int i = 0; i < changedIds.length; i++) {
+            if (i > 0) {
+                selection.append(',');
+            }
+            selection.append(changedIds[i]);
+        }
+        selection.append(')');
+
+        return snapshot.patch(changedIds, query(selection.toString()), mLimit);
+    }
+
+    private PetSnapshot query(String selection) {
+        Cursor cursor;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            CancellationSignal cancellationSignal = new CancellationSignal();
+            synchronized (this) {
+                if (isLoadInBackgroundCanceled()) {
+                    throw new OperationCanceledException();
+                }
+                mCancellationSignal = cancellationSignal;
+            }
+            try {
+                cursor = getContext().getContentResolver().query(mUri, mProjection, selection, null, null,
+                        cancellationSignal);
+            } finally {
+                synchronized (this) {
+                    mCancellationSignal = null;
+                }
+            }
+        } else {
+            cursor = getContext().getContentResolver().query(mUri, mProjection, selection, null, null);
+        }
+        if (cursor == null) {
+            return PetSnapshot.EMPTY;
+        }
+        try {
+            return PetSnapshot.fromCursor(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Runs on the main thread when the load is cancelled, e.g. by a search typed over.
+     * The framework only calls it from Jelly Bean on, where query() makes the signal.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public void cancelLoadInBackground() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        super.cancelLoadInBackground();
+        synchronized (this) {
+            if (mCancellationSignal != null) {
+                mCancellationSignal.cancel();
+            }
+        }
+    }
+
+    Uri getUri() {
+        return mUri;
+    }
+
+    @Override
+    public void deliverResult(PetSnapshot snapshot) {
+        if (isReset()) {
+            return;
+        }
+        mSnapshot = snapshot;
+        if (isStarted()) {
+            super.deliverResult(snapshot);
+        }
+    }
+
+    /**
+     * A load was cancelled after it took the changed pets. The next load can't patch
+     * the snapshot without them, so it loads everything.
+     */
+    @Override
+    public void onCanceled(PetSnapshot snapshot) {
+        synchronized (mChangedIds) {
+            mReloadAll = true;
+        }
+        if (!isStarted()) {
+            onContentChanged();
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        //Observe before the first load, so a change during the load is not missed.
+        //Changes are notified on the URIs of the pets, which are not under filter or search URIs.
+        if (!mObserving) {
+            getContext().getContentResolver().registerContentObserver(PetEntry.CONTENT_URI, true,
+                    mObserver);
+            mObserving = true;
+        }
+        if (mSnapshot != null) {
+            deliverResult(mSnapshot);
+        }
+        if (takeContentChanged() || mSnapshot == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        if (mObserving) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserving = false;
+        }
+        mSnapshot = null;
+    }
+
+    /**
+     * Remembers which pets changed, then loads again.
+     */
+    private class PetObserver extends ContentObserver {
+
+        PetObserver() {
+            super(new Handler());
+        }
+
+        @Override
+        public boolean deliverSelfNotifications() {
+            return true;
+        }
+
+        //Before Jelly Bean there is no URI, so everything is loaded again
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            synchronized (mChangedIds) {
+                long id = getPetId(uri);
+                if (id == -1) {
+                    mReloadAll = true;
+                } else {
+                    mChangedIds.add(id);
+                }
+            }
+            onContentChanged();
+        }
+    }
+
+    /**
+     * Returns the _ID of a single pet URI, or -1 if the URI is not one.
+     */
+    private static long getPetId(Uri uri) {
+        if (uri == null) {
+            return -1;
+        }
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() != 2 || !TextUtils.isDigitsOnly(segments.get(1))
+                || !PetEntry.CONTENT_URI.getPathSegments().get(0).equals(segments.get(0))) {
+            return -1;
+        }
+        return Long.parseLong(segments.get(1));
+    }
+}
@@ -0,0 +1,602 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetChangeEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link PetColumnStore} keeps a copy of the pets table in memory, one primitive array per
+ * column, for filters and statistics that would be too slow through cursors.
+ * _ID is a long[], gender and weight are int[], and breed is an int[] of codes into a
+ * dictionary of the breed names, so a scan reads a few arrays and never boxes or copies a value.
+ * Scans don't allocate: filters are {@link Filter} objects made once, and results go in
+ * arrays the caller passes in.
+ *
+ * Names are not kept. Get them from the provider with the _IDs of {@link #selectIds}.
+ *
+ * Once {@link #start()}ed, the store follows the change log of {@link PetProvider}.
+ * When pets change, it asks for the pets changed since the version it has, and reads only
+ * those again. When the log doesn't go back that far, after deleting all the pets or after
+ * very many changes, it loads everything again.
+ */
+public class PetColumnStore {
+
+    private static final String LOG_TAG = PetColumnStore.class.getSimpleName();
+
+    /**
+     * Breed code of a pet without a breed.
+     */
+    public static final int NO_BREED = -1;
+
+    /**
+     * Returned by {@link #getBreedCode(String)} for a breed no pet has.
+     */
+    public static final int UNKNOWN_BREED = -2;
+
+    /**
+     * Decides whether a pet is part of a scan. Called once per pet, keep it cheap.
+     */
+    public interface Filter {
+        boolean matches(int gender, int weight, int breed);
+    }
+
+    /**
+     * Matches every pet.
+     */
+    public static final Filter ALL = new Filter() {
+        @Override
+        public boolean matches(int gender, int weight, int breed) {
+            return true;
+        }
+    };
+
+    /**
+     * Returns a filter on the gender and a weight range, both included.
+     *
+     * @param gender one of the PetEntry.GENDER_* constants, or -1 for any gender
+     */
+    public static Filter where(final int gender, final int minWeight, final int maxWeight) {
+        return new Filter() {
+            @Override
+            public boolean matches(int petGender, int weight, int breed) {
+                return (gender == -1 || petGender == gender) && weight >= minWeight && weight <= maxWeight;
+            }
+        };
+    }
+
+    // Rows read per query when loading the whole table
+    private static final int PAGE_SIZE = 2000;
+
+    // Changes notified within this delay are applied together
+    private static final long REFRESH_DELAY_MILLIS = 100;
+
+    // Changes read per query when refreshing, each page of them reads its pets in one query
+    private static final int CHANGES_PAGE_SIZE = 500;
+
+    private static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_BREED
+    };
+
+    // Gender of a deleted pet whose row was not compacted away yet
+    private static final int DELETED = -1;
+
+    private final ContentResolver mResolver;
+
+    // The table, replaced by a full load and patched by the changes since. Guarded by mLock.
+    // mVersion is the change log version it is up to date with, -1 if not known.
+    private final Object mLock = new Object();
+    private Columns mColumns = new Columns();
+    private long mVersion = -1;
+
+    // Guards the observer, the executor and mRefreshScheduled
+    private final Object mObserverLock = new Object();
+    private boolean mRefreshScheduled;
+
+    private ScheduledExecutorService mExecutor;
+    private ContentObserver mObserver;
+
+    public PetColumnStore(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Load the whole table now, and follow its changes on a background thread until
+     * {@link #stop()}. Blocks while loading, so don't call it on the main thread.
+     */
+    public void start() {
+        synchronized (mObserverLock) {
+            if (mExecutor != null) {
+                return;
+            }
+            mExecutor = Executors.newSingleThreadScheduledExecutor();
+            mObserver = new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    onChange(selfChange, null);
+                }
+
+                @Override
+                public void onChange(boolean selfChange, Uri uri) {
+                    onPetsChanged();
+                }
+            };
+        }
+        //Observe before loading, so a change during the load is not missed.
+        //Load on the store's thread, so the changes are applied after it.
+        mResolver.registerContentObserver(PetEntry.CONTENT_URI, true, mObserver);
+        Future<?> loaded = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+        try {
+            loaded.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(LOG_TAG, "Failed to load the pets", e.getCause());
+        }
+    }
+
+    /**
+     * Stop following the changes. The store keeps the pets it has.
+     */
+    public void stop() {
+        synchronized (mObserverLock) {
+            if (mExecutor == null) {
+                return;
+            }
+            mResolver.unregisterContentObserver(mObserver);
+            mExecutor.shutdownNow();
+            mExecutor = null;
+            mObserver = null;
+            mRefreshScheduled = false;
+        }
+    }
+
+    /**
+     * Read the whole table into new arrays, then put them in place of the current ones.
+     * Scans keep using the current ones meanwhile. Blocks, don't call it on the main thread.
+     * For a copy that doesn't follow the changes; a started store loads by itself.
+     */
+    public void load() {
+        //Taken first: changes made while loading are applied again after it, which is harmless
+        long version = readChangeVersion();
+
+        Columns columns = new Columns();
+        long lastId = 0;
+        while (true) {
+            Cursor cursor = mResolver.query(PetEntry.buildPageUri(lastId, PAGE_SIZE), COLUMNS,
+                    null, null, null);
+            if (cursor == null) {
+                break;
+            }
+            try {
+                int count = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    lastId = cursor.getLong(0);
+                    columns.append(lastId, cursor.getInt(1), cursor.getInt(2), cursor.getString(3));
+                }
+                if (count < PAGE_SIZE) {
+                    break;
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        synchronized (mLock) {
+            mColumns = columns;
+            mVersion = version;
+        }
+    }
+
+    /**
+     * Returns the current version of the change log, or -1 if it can't be read.
+     */
+    private long readChangeVersion() {
+        //Without a version to start from, the log answers with the current one
+        Cursor cursor = mResolver.query(PetChangeEntry.CONTENT_URI,
+                new String[] { PetChangeEntry.COLUMN_VERSION }, null, null, null);
+        if (cursor == null) {
+            return -1;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void onPetsChanged() {
+        synchronized (mObserverLock) {
+            if (mRefreshScheduled || mExecutor == null) {
+                return;
+            }
+            try {
+                mExecutor.schedule(mRefresh, REFRESH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                mRefreshScheduled = true;
+            } catch (RejectedExecutionException e) {
+                //Stopped
+            }
+        }
+    }
+
+    /**
+     * Runs on the store's thread. Applies the changes notified so far.
+     */
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mObserverLock) {
+                mRefreshScheduled = false;
+            }
+
+            try {
+                applyChanges();
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Failed to refresh the pets", e);
+            }
+        }
+    };
+
+    /**
+     * Read the changes since the store's version, a page at a time, and the pets they name.
+     * Loads everything again if the log doesn't have them all.
+     * Package-private for the tests, which apply the changes without waiting for a notification.
+     */
+    void applyChanges() {
+        long version;
+        synchronized (mLock) {
+            version = mVersion;
+        }
+
+        while (true) {
+            if (version == -1) {
+                load();
+                return;
+            }
+
+            Cursor cursor = mResolver.query(PetChangeEntry.buildChangesUri(version, CHANGES_PAGE_SIZE),
+                    new String[] { PetChangeEntry.COLUMN_VERSION, PetChangeEntry.COLUMN_PET_ID,
+                            PetChangeEntry.COLUMN_CHANGE }, null, null, null);
+            if (cursor == null) {
+                return;
+            }
+            long[] changedIds;
+            try {
+                changedIds = new long[cursor.getCount()];
+                for (int i = 0; cursor.moveToNext(); i++) {
+                    if (cursor.getInt(2) == PetChangeEntry.CHANGE_RESET) {
+                        version = -1;
+                        break;
+                    }
+                    version = cursor.getLong(0);
+                    changedIds[i] = cursor.getLong(1);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (version != -1 && changedIds.length > 0) {
+                refresh(changedIds, version);
+            }
+            if (version != -1 && changedIds.length < CHANGES_PAGE_SIZE) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Read the changed pets again. Pets that are not there anymore were deleted.
+     * The store is then up to date with the given version.
+     */
+    private void refresh(long[] changedIds, long version) {
+        StringBuilder selection = new StringBuilder(PetEntry._ID + " IN (");
+        for (int i = 0; i < changedIds.length; i++) {
+            if (i > 0) {
+                selection.append(',');
+            }
+            selection.append(changedIds[i]);
+        }
+        selection.append(')');
+
+        Cursor cursor = mResolver.query(PetEntry.CONTENT_URI, COLUMNS, selection.toString(), null, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            synchronized (mLock) {
+                Set<Long> found = new HashSet<Long>();
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(0);
+                    found.add(id);
+                    mColumns.put(id, cursor.getInt(1), cursor.getInt(2), cursor.getString(3));
+                }
+                for (long id : changedIds) {
+                    if (!found.contains(id)) {
+                        mColumns.delete(id);
+                    }
+                }
+                mVersion = version;
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the number of pets.
+     */
+    public int size() {
+        synchronized (mLock) {
+            return mColumns.size - mColumns.deleted;
+        }
+    }
+
+    /**
+     * Returns the number of pets matching the filter.
+     */
+    public int count(Filter filter) {
+        synchronized (mLock) {
+            Columns c = mColumns;
+            int count = 0;
+            for (int i = 0; i < c.size; i++) {
+                int gender = c.genders[i];
+                if (gender != DELETED && filter.matches(gender, c.weights[i], c.breeds[i])) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Returns the total weight of the pets matching the filter.
+     */
+    public long sumWeight(Filter filter) {
+        synchronized (mLock) {
+            Columns c = mColumns;
+            long sum = 0;
+            for (int i = 0; i < c.size; i++) {
+                int gender = c.genders[i];
+                int weight = c.weights[i];
+                if (gender != DELETED && filter.matches(gender, weight, c.breeds[i])) {
+                    sum += weight;
+                }
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Count the pets matching the filter per gender.
+     *
+     * @param counts filled with the count of each gender, indexed by the PetEntry.GENDER_* value,
+     *               so at least 3 values
+     * @return the number of matching pets
+     */
+    public int countByGender(Filter filter, int[] counts) {
+        Arrays.fill(counts, 0);
+        synchronized (mLock) {
+            Columns c = mColumns;
+            int count = 0;
+            for (int i = 0; i < c.size; i++) {
+                int gender = c.genders[i];
+                if (gender != DELETED && filter.matches(gender, c.weights[i], c.breeds[i])) {
+                    counts[gender]++;
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Count the pets matching the filter per breed. Pets without a breed are not counted.
+     *
+     * @param counts filled with the count of each breed, indexed by breed code.
+     *               Must hold at least {@link #getBreedCount()} values.
+     * @return the number of matching pets with a breed
+     */
+    public int countByBreed(Filter filter, int[] counts) {
+        Arrays.fill(counts, 0);
+        synchronized (mLock) {
+            Columns c = mColumns;
+            if (counts.length < c.breedNames.size()) {
+                throw new IllegalArgumentException("Needs room for " + c.breedNames.size()
+                        + " breeds, not " + counts.length);
+            }
+            int count = 0;
+            for (int i = 0; i < c.size; i++) {
+                int gender = c.genders[i];
+                int breed = c.breeds[i];
+                if (gender != DELETED && breed != NO_BREED && filter.matches(gender, c.weights[i], breed)) {
+                    counts[breed]++;
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Put the _IDs of the pets matching the filter in ids, in _ID order, as many as it holds.
+     * Returns the number of matching pets, which may be more than were put in ids.
+     */
+    public int selectIds(Filter filter, long[] ids) {
+        synchronized (mLock) {
+            Columns c = mColumns;
+            int count = 0;
+            for (int i = 0; i < c.size; i++) {
+                int gender = c.genders[i];
+                if (gender != DELETED && filter.matches(gender, c.weights[i], c.breeds[i])) {
+                    if (count < ids.length) {
+                        ids[count] = c.ids[i];
+                    }
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Returns the number of breed codes. Codes go from 0 to this number minus one.
+     * A breed keeps its code until the next full load, even when no pet has it anymore.
+     */
+    public int getBreedCount() {
+        synchronized (mLock) {
+            return mColumns.breedNames.size();
+        }
+    }
+
+    /**
+     * Returns the name of a breed code.
+     */
+    public String getBreedName(int breed) {
+        synchronized (mLock) {
+            return breed == NO_BREED ? null : mColumns.breedNames.get(breed);
+        }
+    }
+
+    /**
+     * Returns the code of a breed name, {@link #NO_BREED} for null,
+     * or {@link #UNKNOWN_BREED} if no pet has that breed.
+     */
+    public int getBreedCode(String breed) {
+        if (breed == null) {
+            return NO_BREED;
+        }
+        synchronized (mLock) {
+            Integer code = mColumns.breedCodes.get(breed);
+            return code == null ? UNKNOWN_BREED : code;
+        }
+    }
+
+    /**
+     * The columns of the table, in _ID order, with the breed dictionary.
+     */
+    private static class Columns {
+
+        long[] ids = new long[16];
+        int[] genders = new int[16];
+        int[] weights = new int[16];
+        int[] breeds = new int[16];
+        int size;
+
+        // Rows of deleted pets, until they are compacted away
+        int deleted;
+
+        final ArrayList<String> breedNames = new ArrayList<String>();
+        final HashMap<String, Integer> breedCodes = new HashMap<String, Integer>();
+
+        void append(long id, int gender, int weight, String breed) {
+            insertAt(size, id, gender, weight, breed);
+        }
+
+        /**
+         * Add or replace the pet with the given _ID.
+         */
+        void put(long id, int gender, int weight, String breed) {
+            int i = Arrays.binarySearch(ids, 0, size, id);
+            if (i < 0) {
+                insertAt(-i - 1, id, gender, weight, breed);
+                return;
+            }
+            if (genders[i] == DELETED) {
+                deleted--;
+            }
+            genders[i] = gender;
+            weights[i] = weight;
+            breeds[i] = encode(breed);
+        }
+
+        void delete(long id) {
+            int i = Arrays.binarySearch(ids, 0, size, id);
+            if (i < 0 || genders[i] == DELETED) {
+                return;
+            }
+            genders[i] = DELETED;
+            deleted++;
+            if (deleted > size / 4) {
+                compact();
+            }
+        }
+
+        private void insertAt(int i, long id, int gender, int weight, String breed) {
+            if (size == ids.length) {
+                int capacity = size * 2;
+                ids = Arrays.copyOf(ids, capacity);
+                genders = Arrays.copyOf(genders, capacity);
+                weights = Arrays.copyOf(weights, capacity);
+                breeds = Arrays.copyOf(breeds, capacity);
+            }
+            //New pets have the highest _ID, so this is almost always an append
+            if (i < size) {
+                System.arraycopy(ids, i, ids, i + 1, size - i);
+                System.arraycopy(genders, i, genders, i + 1, size - i);
+                System.arraycopy(weights, i, weights, i + 1, size - i);
+                System.arraycopy(breeds, i, breeds, i + 1, size - i);
+            }
+            ids[i] = id;
+            genders[i] = gender;
+            weights[i] = weight;
+            breeds[i] = encode(breed);
+            size++;
+        }
+
+        /**
+         * Remove the rows of deleted pets.
+         */
+        private void compact() {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (genders[i] == DELETED) {
+                    continue;
+                }
+                ids[kept] = ids[i];
+                genders[kept] = genders[i];
+                weights[kept] = weights[i];
+                breeds[kept] = breeds[i];
+                kept++;
+            }
+            size = kept;
+            deleted = 0;
+        }
+
+        private int encode(String breed) {
+            if (breed == null) {
+                return NO_BREED;
+            }
+            Integer code = breedCodes.get(breed);
+            if (code == null) {
+                code = breedNames.size();
+                breedNames.add(breed);
+                breedCodes.put(breed, code);
+            }
+            return code;
+        }
+    }
+}
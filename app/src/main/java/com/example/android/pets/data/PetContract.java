@@ -1,9 +1,12 @@
 package com.example.android.pets.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
+import java.util.ArrayList;
+
 /**
  * Created by Yasuaki on 2016/09/26.
  */
@@ -18,11 +21,180 @@ public final class PetContract {
     static final String CONTENT_AUTHORITY = "com.example.android.pets";
     static final Uri BASE_CONTENT_URI = Uri.parse("content://" + CONTENT_AUTHORITY);
     static final String PATH_PETS = "pets";
+    static final String PATH_SEARCH = "search";
+    static final String PATH_STATS = "stats";
+    static final String PATH_GENDER = "gender";
+    static final String PATH_BREED = "breed";
+    static final String PATH_EXPORT = "export";
+    static final String PATH_WEIGHT = "weight";
+    static final String PATH_CHANGES = "changes";
+
+    /**
+     * {@link android.content.ContentResolver#call} method returning the counters of the
+     * provider's single pet cache, under {@link #KEY_CACHE_HITS}, {@link #KEY_CACHE_MISSES}
+     * and {@link #KEY_CACHE_SIZE}.
+     */
+    public static final String METHOD_GET_PET_CACHE_STATS = "get_pet_cache_stats";
+
+    /** Number of PET_ID queries served from memory. */
+    public static final String KEY_CACHE_HITS = "hits";
+
+    /** Number of PET_ID queries that had to read the database. */
+    public static final String KEY_CACHE_MISSES = "misses";
+
+    /** Number of pets in the cache. */
+    public static final String KEY_CACHE_SIZE = "size";
+
+    /**
+     * {@link android.content.ContentResolver#call} method returning how often and how fast the
+     * provider served each operation on each kind of URI, since it started.
+     * The result holds one Bundle per operation and URI that was called, under keys like
+     * "query:pets", "query:pet_id", "update:pet_id" or "bulk_insert:pets".
+     * Each of them holds the KEY_METRIC_* values, all longs.
+     */
+    public static final String METHOD_GET_METRICS = "get_metrics";
+
+    /** Number of calls. */
+    public static final String KEY_METRIC_CALLS = "calls";
+
+    /** Rows returned by the queries, or rows changed by the writes. */
+    public static final String KEY_METRIC_ROWS = "rows";
+
+    /** Time spent in all the calls, in microseconds. */
+    public static final String KEY_METRIC_TOTAL_MICROS = "total_us";
+
+    /** Latency percentiles in microseconds, rounded up by at most 25%. */
+    public static final String KEY_METRIC_P50_MICROS = "p50_us";
+    public static final String KEY_METRIC_P90_MICROS = "p90_us";
+    public static final String KEY_METRIC_P99_MICROS = "p99_us";
+
+    /**
+     * {@link android.content.ContentResolver#call} method returning the last queries that took
+     * longer than the slow query threshold, oldest first, as an ArrayList of Bundles under
+     * {@link #KEY_SLOW_QUERIES}. Each holds the KEY_SLOW_QUERY_* values.
+     * The same list is printed by "adb shell dumpsys activity provider PetProvider".
+     */
+    public static final String METHOD_GET_SLOW_QUERIES = "get_slow_queries";
+
+    /**
+     * {@link android.content.ContentResolver#call} method setting the slow query threshold
+     * to the number of milliseconds passed as the arg.
+     */
+    public static final String METHOD_SET_SLOW_QUERY_THRESHOLD = "set_slow_query_threshold";
+
+    public static final String KEY_SLOW_QUERIES = "slow_queries";
+
+    /** The threshold, in milliseconds (long). */
+    public static final String KEY_SLOW_QUERY_THRESHOLD_MILLIS = "threshold_ms";
+
+    /** SQL of a slow query, with ? in place of the arguments (String). */
+    public static final String KEY_SLOW_QUERY_SQL = "sql";
+
+    /** Types of the arguments, like "[number, text(5)]". Values are not kept (String). */
+    public static final String KEY_SLOW_QUERY_ARGS = "args";
+
+    /** How long the query took, in milliseconds (long). */
+    public static final String KEY_SLOW_QUERY_MILLIS = "ms";
+
+    /** When the query ran, in System.currentTimeMillis() time (long). */
+    public static final String KEY_SLOW_QUERY_TIME = "time";
+
+    /** Output of EXPLAIN QUERY PLAN, one step per line (String). */
+    public static final String KEY_SLOW_QUERY_PLAN = "plan";
+
+    /**
+     * {@link android.content.ContentResolver#call} method exporting pets in the
+     * {@link PetEntry#MIME_TYPE_PACKED} format, returning the read end of a pipe
+     * (ParcelFileDescriptor) under {@link #KEY_EXPORT_PIPE}. Close it when done.
+     * Pass KEY_EXPORT_* extras to export only some of the pets, all of them without.
+     *
+     * One call hands over the pipe, and the pets then stream through it as they are read,
+     * in _ID order. A cursor across processes instead copies its rows into a window,
+     * one Binder call per window, and every value is written and read with its type.
+     * Read the pipe with {@link PetPackedReader#open}.
+     */
+    public static final String METHOD_EXPORT_PACKED = "export_packed";
+
+    public static final String KEY_EXPORT_PIPE = "pipe";
+
+    /**
+     * Options of an export, for {@link #METHOD_EXPORT_PACKED} or as the opts of
+     * {@link ContentResolver#openTypedAssetFileDescriptor} on the export URI.
+     * Export the pets with an _ID greater than KEY_EXPORT_AFTER_ID and up to KEY_EXPORT_UNTIL_ID
+     * (longs), of the gender KEY_EXPORT_GENDER, weighing from KEY_EXPORT_MIN_WEIGHT to
+     * KEY_EXPORT_MAX_WEIGHT (ints). Each of them can be left out.
+     */
+    public static final String KEY_EXPORT_AFTER_ID = "after_id";
+    public static final String KEY_EXPORT_UNTIL_ID = "until_id";
+    public static final String KEY_EXPORT_GENDER = "gender";
+    public static final String KEY_EXPORT_MIN_WEIGHT = "min_weight";
+    public static final String KEY_EXPORT_MAX_WEIGHT = "max_weight";
 
     public static final class PetEntry implements BaseColumns {
 
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PETS);
 
+        /**
+         * The content URI to search pets by name and breed.
+         * Use {@link #buildSearchUri(String, int)} to put the search words on it.
+         */
+        public static final Uri CONTENT_SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SEARCH);
+
+        /**
+         * The content URI to export all the pets as a file.
+         * Open it with {@link ContentResolver#openInputStream(Uri)} for CSV, or with
+         * {@link ContentResolver#openTypedAssetFileDescriptor(Uri, String, android.os.Bundle)}
+         * and {@link #MIME_TYPE_CSV} or {@link #MIME_TYPE_JSON}.
+         * The pets are streamed while they are read, so the export can be read right away.
+         *
+         * A CSV or JSON export that fails part way ends like a complete one. From KitKat on,
+         * open it with {@link ContentResolver#openFileDescriptor} or the typed variant and call
+         * {@link android.os.ParcelFileDescriptor#checkError()} after reading to the end:
+         * it throws an IOException with the cause if the export failed.
+         */
+        public static final Uri CONTENT_EXPORT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_EXPORT);
+
+        /**
+         * The content URI of the pets of one gender: append the gender, or use
+         * {@link #buildGenderUri(int)}. Takes {@link #QUERY_PARAM_MIN_WEIGHT} and
+         * {@link #QUERY_PARAM_MAX_WEIGHT} too.
+         *
+         * Filtered pets come lightest first, then by _ID. That is the order of the
+         * gender and weight index, so a page only reads its own rows, on any number of pets.
+         * They can be paged like {@link #CONTENT_URI}, see {@link #buildPageUri(Uri, long, int)}.
+         */
+        public static final Uri CONTENT_GENDER_URI = Uri.withAppendedPath(CONTENT_URI, PATH_GENDER);
+
+        /**
+         * The content URI of the pets in a weight range, of any gender, given with
+         * {@link #QUERY_PARAM_MIN_WEIGHT} and {@link #QUERY_PARAM_MAX_WEIGHT}.
+         * Ordered and paged like {@link #CONTENT_GENDER_URI}.
+         */
+        public static final Uri CONTENT_WEIGHT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_WEIGHT);
+
+        /**
+         * Export format of {@link #CONTENT_EXPORT_URI}: a header line with the column names,
+         * then one line per pet.
+         */
+        public static final String MIME_TYPE_CSV = "text/csv";
+
+        /**
+         * Export format of {@link #CONTENT_EXPORT_URI}: an array with one object per pet.
+         */
+        public static final String MIME_TYPE_JSON = "application/json";
+
+        /**
+         * Export format of {@link #CONTENT_EXPORT_URI} and {@link #METHOD_EXPORT_PACKED}:
+         * the pets in binary, in blocks of up to a few hundred. All numbers are big-endian.
+         * Each block starts with its number of pets (int) and the number of bytes after that
+         * (int), followed by the _IDs (one long per pet), the genders (int per pet),
+         * the weights (int per pet), then for each pet its name and its breed, each as a byte
+         * count (int, -1 for null) and that many bytes of UTF-8.
+         * A block of 0 pets ends the export. If the stream ends without it, the export failed.
+         * {@link PetPackedReader} reads it.
+         */
+        public static final String MIME_TYPE_PACKED = "application/vnd." + CONTENT_AUTHORITY + ".packed";
+
         /**
          * The MIME type of the {@link #CONTENT_URI} for a list of pets.
          */
@@ -35,8 +207,52 @@ public final class PetContract {
         public static final String CONTENT_ITEM_TYPE =
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS;
 
+        /**
+         * Query parameter for a paged query on {@link #CONTENT_URI}.
+         * Only rows with an _ID greater than this value are returned.
+         */
+        public static final String QUERY_PARAM_AFTER = "after";
+
+        /**
+         * Query parameter for a paged query on {@link #CONTENT_URI}.
+         * The maximum number of rows returned in one page.
+         */
+        public static final String QUERY_PARAM_LIMIT = "limit";
+
+        /**
+         * Query parameters for {@link #CONTENT_GENDER_URI} and {@link #CONTENT_WEIGHT_URI}.
+         * The lowest and highest weight of the pets returned, both included. Either can be left out.
+         */
+        public static final String QUERY_PARAM_MIN_WEIGHT = "min";
+        public static final String QUERY_PARAM_MAX_WEIGHT = "max";
+
+        /**
+         * Query parameter for {@link #CONTENT_SEARCH_URI}. The words to search for.
+         * Every word must match the start of a word in the name or the breed.
+         */
+        public static final String QUERY_PARAM_SEARCH = "q";
+
+        /**
+         * Query parameter for {@link #CONTENT_URI}, "true" to read the pets a block at a time.
+         * See {@link #buildBlocksUri()}.
+         */
+        public static final String QUERY_PARAM_BLOCKS = "blocks";
+
         static final String TABLE_NAME = "pets";
 
+        //Full-text index over name and breed, kept in sync with TABLE_NAME by triggers
+        static final String FTS_TABLE_NAME = "pets_fts";
+
+        //The pets with the name of their breed, in the columns of the contract.
+        //The provider reads pets from here, the table only has the breed's _ID.
+        static final String VIEW_NAME = "pets_with_breed";
+
+        //What the full-text index reads the text of the pets from: rowid, name and breed
+        static final String FTS_CONTENT_VIEW_NAME = "pets_fts_content";
+
+        //_ID of the pet's breed in BreedEntry.TABLE_NAME, or NULL for no breed
+        static final String COLUMN_PET_BREED_ID = "breed_id";
+
         public static final String _ID = BaseColumns._ID;
         public static final String COLUMN_PET_NAME = "name";
         public static final String COLUMN_PET_BREED = "breed";
@@ -47,6 +263,118 @@ public final class PetContract {
         public static final int GENDER_FEMALE = 2;
         public static final int GENDER_UNKNOWN = 0;
 
+        /**
+         * Columns of the catalog list. The provider reads its first page with these
+         * columns at startup, so the catalog's first query finds it prepared.
+         */
+        public static final String[] CATALOG_PROJECTION = { _ID, COLUMN_PET_NAME, COLUMN_PET_BREED };
+
+        /**
+         * Number of pets in a page of the catalog list.
+         */
+        public static final int CATALOG_PAGE_SIZE = 50;
+
+        /**
+         * Build the URI for one page of pets, ordered by _ID.
+         * Pass 0 to get the first page, and the last _ID of a page to get the one after it.
+         * Paging by _ID (keyset) costs the same on every page, unlike an OFFSET.
+         */
+        public static Uri buildPageUri(long afterId, int limit) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_AFTER, String.valueOf(afterId))
+                    .appendQueryParameter(QUERY_PARAM_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+
+        /**
+         * Build the URI of the pets in _ID order, read a block of a few hundred rows at a time as
+         * the cursor moves instead of through one query. A plain cursor gets slower the further
+         * down it moves, as it runs its query again to get there. On this one any row can be
+         * reached in about the same time, which suits a long list scrolled with a fast scroller.
+         * The projection can only have the pet columns, and the sort order must be null or _ID.
+         * Pets inserted after the query are not in the cursor, see PetKeysetCursor for the rest.
+         */
+        public static Uri buildBlocksUri() {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_BLOCKS, "true")
+                    .build();
+        }
+
+        /**
+         * Build the URI for one page of a filter URI, like {@link #buildPageUri(long, int)}.
+         * Pass 0 to get the first page, and the last _ID of a page to get the one after it.
+         */
+        public static Uri buildPageUri(Uri filterUri, long afterId, int limit) {
+            return filterUri.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_AFTER, String.valueOf(afterId))
+                    .appendQueryParameter(QUERY_PARAM_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+
+        /**
+         * Build the URI of the pets of one gender, one of the GENDER_* constants.
+         */
+        public static Uri buildGenderUri(int gender) {
+            return ContentUris.withAppendedId(CONTENT_GENDER_URI, gender);
+        }
+
+        /**
+         * Build the URI of the pets weighing from minWeight to maxWeight, both included.
+         * Pass null for no bound. Works on {@link #CONTENT_WEIGHT_URI} or a gender URI.
+         */
+        public static Uri buildWeightUri(Uri filterUri, Integer minWeight, Integer maxWeight) {
+            Uri.Builder builder = filterUri.buildUpon();
+            if (minWeight != null) {
+                builder.appendQueryParameter(QUERY_PARAM_MIN_WEIGHT, String.valueOf(minWeight));
+            }
+            if (maxWeight != null) {
+                builder.appendQueryParameter(QUERY_PARAM_MAX_WEIGHT, String.valueOf(maxWeight));
+            }
+            return builder.build();
+        }
+
+        /**
+         * Build the URI to search pets with the given words, best matches first.
+         * At most limit rows are returned.
+         */
+        public static Uri buildSearchUri(String searchWords, int limit) {
+            return CONTENT_SEARCH_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_SEARCH, searchWords)
+                    .appendQueryParameter(QUERY_PARAM_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+
+        /**
+         * Split the search text into words the way {@link #CONTENT_SEARCH_URI} and the full-text
+         * index do. Like the index's "simple" tokenizer, words are ASCII letters and digits and
+         * any non-ASCII character, and only ASCII letters are made lower case: "Émile" is found
+         * by "Émile", not by "émile". Any other character separates words, so quotes and
+         * operators typed by the user can't break the MATCH syntax.
+         */
+        public static String[] splitSearchWords(String searchText) {
+            if (searchText == null) {
+                return new String[0];
+            }
+
+            ArrayList<String> words = new ArrayList<String>();
+            StringBuilder word = new StringBuilder();
+            for (int i = 0; i < searchText.length(); i++) {
+                char c = searchText.charAt(i);
+                if (c >= 'A' && c <= 'Z') {
+                    word.append((char) (c + ('a' - 'A')));
+                } else if (c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c >= 0x80) {
+                    word.append(c);
+                } else if (word.length() > 0) {
+                    words.add(word.toString());
+                    word.setLength(0);
+                }
+            }
+            if (word.length() > 0) {
+                words.add(word.toString());
+            }
+            return words.toArray(new String[words.size()]);
+        }
+
         /**
          * Returns whether or not the given gender is GENDER_* constant.
          */
@@ -55,4 +383,118 @@ public final class PetContract {
             return gender == GENDER_UNKNOWN || gender == GENDER_MALE || gender == GENDER_FEMALE;
         }
     }
+
+    /**
+     * The change log of the pets: which pets were inserted, updated or deleted, by version.
+     * Each change to a pet takes the next version. A copy of the pets kept somewhere else asks
+     * for the changes since the last version it has, and reads only those pets again,
+     * so keeping it up to date costs as much as the number of changes, not of pets.
+     *
+     * Start with a query on {@link #CONTENT_URI}: it returns a single {@link #CHANGE_RESET} row
+     * with the current version. Read all the pets, then ask for the changes since that version
+     * with {@link #buildChangesUri(long, int)}. A pet changed meanwhile shows up in both, which
+     * is harmless. After that, continue from the version of the last row of each answer.
+     *
+     * Only the last change of each pet is kept, so a pet inserted and then updated shows up as
+     * updated: treat both as "read this pet again". Only the most recent changes are kept. When the log
+     * no longer goes back to the version asked for, or all the pets were deleted at once, the
+     * answer is a {@link #CHANGE_RESET} row again. Read only. Cursors on these URIs are notified
+     * whenever a pet changes.
+     */
+    public static final class PetChangeEntry {
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(PetEntry.CONTENT_URI, PATH_CHANGES);
+
+        /**
+         * The MIME type of {@link #CONTENT_URI}.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_CHANGES;
+
+        /**
+         * Query parameter for {@link #CONTENT_URI}. Only changes with a greater version are returned.
+         * Takes {@link PetEntry#QUERY_PARAM_LIMIT} too.
+         */
+        public static final String QUERY_PARAM_SINCE = "since";
+
+        static final String TABLE_NAME = "pet_changes";
+
+        //One row holding the highest version dropped from the log
+        static final String FLOOR_TABLE_NAME = "pet_changes_floor";
+
+        /** Version of the change (long). Changes come in version order. */
+        public static final String COLUMN_VERSION = "version";
+
+        /** _ID of the changed pet, null for {@link #CHANGE_RESET}. */
+        public static final String COLUMN_PET_ID = "pet_id";
+
+        /** What happened, one of the CHANGE_* constants. */
+        public static final String COLUMN_CHANGE = "change";
+
+        /** The changes since the version asked for are not known. Read all the pets again. */
+        public static final int CHANGE_RESET = 0;
+        public static final int CHANGE_INSERT = 1;
+        public static final int CHANGE_UPDATE = 2;
+        public static final int CHANGE_DELETE = 3;
+
+        /**
+         * Build the URI of at most limit changes after the given version, oldest first.
+         */
+        public static Uri buildChangesUri(long sinceVersion, int limit) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_SINCE, String.valueOf(sinceVersion))
+                    .appendQueryParameter(PetEntry.QUERY_PARAM_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+    }
+
+    /**
+     * Names of the breeds, each stored once. Pets refer to their breed by its _ID.
+     * Only the provider sees it: pets are read and written with the breed's name.
+     */
+    static final class BreedEntry implements BaseColumns {
+
+        static final String TABLE_NAME = "breeds";
+
+        static final String COLUMN_BREED_NAME = "name";
+    }
+
+    /**
+     * Number of pets and their total weight per gender and per breed.
+     * The rows are kept up to date by the database as pets change, so reading them
+     * costs the same however many pets there are. Read only.
+     * Cursors on these URIs are notified whenever a pet changes.
+     */
+    public static final class PetStatsEntry {
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(PetEntry.CONTENT_URI, PATH_STATS);
+
+        /**
+         * One row per gender that has pets, ordered by gender.
+         */
+        public static final Uri CONTENT_GENDER_URI = Uri.withAppendedPath(CONTENT_URI, PATH_GENDER);
+
+        /**
+         * One row per breed that has pets, the most common breeds first.
+         */
+        public static final Uri CONTENT_BREED_URI = Uri.withAppendedPath(CONTENT_URI, PATH_BREED);
+
+        /**
+         * The MIME type of the stats URIs.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_STATS;
+
+        static final String GENDER_TABLE_NAME = "pet_stats_gender";
+        static final String BREED_TABLE_NAME = "pet_stats_breed";
+
+        /** Gender of the row in {@link #CONTENT_GENDER_URI}, one of the PetEntry.GENDER_* constants. */
+        public static final String COLUMN_GENDER = PetEntry.COLUMN_PET_GENDER;
+
+        /** Breed of the row in {@link #CONTENT_BREED_URI}. Pets without a breed count under "". */
+        public static final String COLUMN_BREED = PetEntry.COLUMN_PET_BREED;
+
+        public static final String COLUMN_PET_COUNT = "pet_count";
+        public static final String COLUMN_TOTAL_WEIGHT = "total_weight";
+    }
 }
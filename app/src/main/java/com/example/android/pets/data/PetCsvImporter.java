@@ -0,0 +1,314 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link PetCsvImporter} adds the pets of a CSV stream, in the format of the CSV export.
+ * The first line names the columns, in any order. The name and gender columns are required,
+ * _ID and unknown columns are ignored.
+ *
+ * The stream is read a chunk of rows at a time, and each chunk is inserted with one
+ * bulkInsert() (one transaction) before the next one is read. Memory use does not depend
+ * on the size of the file, and reading never runs ahead of the database.
+ * Rows the provider would refuse are skipped and counted.
+ *
+ * The import is not all-or-nothing: chunks inserted before a cancel, a malformed record or
+ * a read error stay. A malformed record stops the import, with the pets before it inserted,
+ * and {@link Result#failedRecord} tells which one it was. To import all of a file or none of
+ * it, copy the file to local storage and import that copy, so only the rows can fail.
+ */
+public class PetCsvImporter {
+
+    private static final String LOG_TAG = PetCsvImporter.class.getSimpleName();
+
+    /**
+     * Rows committed together when no chunk size is given.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 500;
+
+    /**
+     * Told about the progress after each committed chunk. Called on the importing thread.
+     */
+    public interface ProgressListener {
+        void onProgress(int imported, int skipped);
+    }
+
+    /**
+     * Counts of an import.
+     */
+    public static final class Result {
+        public final int imported;
+        public final int skipped;
+
+        /**
+         * Number of the malformed record the import stopped at, the header being 1.
+         * 0 when all the records were read.
+         */
+        public final int failedRecord;
+
+        Result(int imported, int skipped, int failedRecord) {
+            this.imported = imported;
+            this.skipped = skipped;
+            this.failedRecord = failedRecord;
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final int mChunkSize;
+
+    private volatile boolean mCanceled;
+
+    public PetCsvImporter(ContentResolver resolver) {
+        this(resolver, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param resolver  used to insert the pets
+     * @param chunkSize rows inserted in one transaction
+     */
+    public PetCsvImporter(ContentResolver resolver, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive " + chunkSize);
+        }
+        mResolver = resolver;
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * Stop the running import after the chunk being inserted. Chunks already inserted stay.
+     */
+    public void cancel() {
+        mCanceled = true;
+    }
+
+    /**
+     * Import all the pets of the stream. Blocks until done, so don't call it on the main thread.
+     * The stream is not closed.
+     *
+     * @param listener told about the progress, may be null
+     * @throws IOException if the stream can't be read or has no header with name and gender.
+     *                     Chunks inserted before a read error stay.
+     */
+    public Result importPets(InputStream in, ProgressListener listener) throws IOException {
+        CsvReader reader = new CsvReader(new BufferedReader(new InputStreamReader(in, "UTF-8")));
+
+        List<String> header = reader.readRecord();
+        if (header == null) {
+            return new Result(0, 0, 0);
+        }
+        //Some editors start UTF-8 files with a byte order mark
+        if (header.get(0).startsWith("\uFEFF")) {
+            header.set(0, header.get(0).substring(1));
+        }
+        int nameIndex = header.indexOf(PetEntry.COLUMN_PET_NAME);
+        int breedIndex = header.indexOf(PetEntry.COLUMN_PET_BREED);
+        int genderIndex = header.indexOf(PetEntry.COLUMN_PET_GENDER);
+        int weightIndex = header.indexOf(PetEntry.COLUMN_PET_WEIGHT);
+        if (nameIndex == -1 || genderIndex == -1) {
+            throw new IOException("CSV header needs the " + PetEntry.COLUMN_PET_NAME + " and "
+                    + PetEntry.COLUMN_PET_GENDER + " columns: " + header);
+        }
+
+        int imported = 0;
+        int skipped = 0;
+        int failedRecord = 0;
+        ArrayList<ContentValues> chunk = new ArrayList<ContentValues>(mChunkSize);
+        List<String> record;
+        while (!mCanceled) {
+            try {
+                record = reader.readRecord();
+            } catch (MalformedRecordException e) {
+                //The pets before it are valid, insert them with the last chunk
+                Log.w(LOG_TAG, "Import stopped", e);
+                failedRecord = e.getRecordNumber();
+                break;
+            }
+            if (record == null) {
+                break;
+            }
+            ContentValues values = toPet(record, nameIndex, breedIndex, genderIndex, weightIndex);
+            if (values == null) {
+                Log.w(LOG_TAG, "Skipped invalid pet on record " + reader.getRecordNumber());
+                skipped++;
+                continue;
+            }
+            chunk.add(values);
+
+            if (chunk.size() == mChunkSize) {
+                imported += insert(chunk);
+                if (listener != null) {
+                    listener.onProgress(imported, skipped);
+                }
+            }
+        }
+
+        if (!chunk.isEmpty() && !mCanceled) {
+            imported += insert(chunk);
+        }
+        if (listener != null) {
+            listener.onProgress(imported, skipped);
+        }
+        return new Result(imported, skipped, failedRecord);
+    }
+
+    private int insert(ArrayList<ContentValues> chunk) {
+        int inserted = mResolver.bulkInsert(PetEntry.CONTENT_URI,
+                chunk.toArray(new ContentValues[chunk.size()]));
+        chunk.clear();
+        return inserted;
+    }
+
+    /**
+     * Returns the pet of a record, or null if it is not a valid new pet.
+     */
+    private static ContentValues toPet(List<String> record, int nameIndex, int breedIndex,
+                                       int genderIndex, int weightIndex) {
+        ContentValues values = new ContentValues();
+        try {
+            values.put(PetEntry.COLUMN_PET_NAME, field(record, nameIndex));
+
+            String breed = field(record, breedIndex);
+            values.put(PetEntry.COLUMN_PET_BREED, breed == null || breed.isEmpty() ? null : breed);
+
+            String gender = field(record, genderIndex);
+            if (gender != null) {
+                values.put(PetEntry.COLUMN_PET_GENDER, Integer.parseInt(gender.trim()));
+            }
+
+            //Missing weight takes the column default, like in the editor
+            String weight = field(record, weightIndex);
+            if (weight != null && !weight.trim().isEmpty()) {
+                values.put(PetEntry.COLUMN_PET_WEIGHT, Integer.parseInt(weight.trim()));
+            }
+
+            PetProvider.validateNewPet(values);
+        } catch (IllegalArgumentException e) {
+            //NumberFormatException is one too
+            return null;
+        }
+        return values;
+    }
+
+    private static String field(List<String> record, int index) {
+        return index >= 0 && index < record.size() ? record.get(index) : null;
+    }
+
+    /**
+     * Thrown for a record that is not valid CSV. The records after it can't be told apart.
+     */
+    private static class MalformedRecordException extends IOException {
+
+        private final int mRecordNumber;
+
+        MalformedRecordException(String message, int recordNumber) {
+            super(message + " in record " + recordNumber);
+            mRecordNumber = recordNumber;
+        }
+
+        int getRecordNumber() {
+            return mRecordNumber;
+        }
+    }
+
+    /**
+     * Reads the records of a CSV stream one at a time (RFC 4180).
+     * Quoted fields may hold separators, doubled quotes and line breaks. Empty lines are skipped.
+     */
+    private static class CsvReader {
+
+        private final Reader mReader;
+        private int mRecordNumber;
+
+        // A character read ahead, or -2 when none
+        private int mNext = -2;
+
+        CsvReader(Reader reader) {
+            mReader = reader;
+        }
+
+        /**
+         * Returns the number of the last record read, the header being 1.
+         */
+        int getRecordNumber() {
+            return mRecordNumber;
+        }
+
+        /**
+         * Returns the fields of the next record, or null at the end of the stream.
+         * Throws MalformedRecordException if the stream ends inside a quoted field.
+         */
+        List<String> readRecord() throws IOException {
+            int c = read();
+            //Skip empty lines
+            while (c == '\r' || c == '\n') {
+                c = read();
+            }
+            if (c == -1) {
+                return null;
+            }
+
+            ArrayList<String> fields = new ArrayList<String>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            while (true) {
+                if (quoted) {
+                    if (c == -1) {
+                        throw new MalformedRecordException("Unterminated quote", mRecordNumber + 1);
+                    }
+                    if (c == '"') {
+                        int after = read();
+                        if (after == '"') {
+                            field.append('"');
+                        } else {
+                            quoted = false;
+                            c = after;
+                            continue;
+                        }
+                    } else {
+                        field.append((char) c);
+                    }
+                } else if (c == '"' && field.length() == 0) {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else if (c == '\r' || c == '\n' || c == -1) {
+                    //A CRLF is one line break
+                    if (c == '\r') {
+                        int after = read();
+                        if (after != '\n') {
+                            mNext = after;
+                        }
+                    }
+                    fields.add(field.toString());
+                    mRecordNumber++;
+                    return fields;
+                } else {
+                    field.append((char) c);
+                }
+                c = read();
+            }
+        }
+
+        private int read() throws IOException {
+            if (mNext != -2) {
+                int c = mNext;
+                mNext = -2;
+                return c;
+            }
+            return mReader.read();
+        }
+    }
+}
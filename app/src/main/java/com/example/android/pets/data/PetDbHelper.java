@@ -1,19 +1,70 @@
 package com.example.android.pets.data;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.util.Log;
 
 //constant は inner class にいるので、PetEntry まで import する
+import com.example.android.pets.data.PetContract.BreedEntry;
+import com.example.android.pets.data.PetContract.PetChangeEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetStatsEntry;
+
+import java.util.ArrayList;
 
 /*Database helper for Pets app. Manages database creation and version management*/
 public class PetDbHelper extends SQLiteOpenHelper {
 
     //If you change DB schema, you must increment the DB version
-    private static final int DATABASE_VERSION = 1;
-    private static final String DATABASE_NAME = "shelter.db";
+    //and add the step to that version in upgradeTo()
+    private static final int DATABASE_VERSION = 6;
+    static final String DATABASE_NAME = "shelter.db";
+
+    private static final String LOG_TAG = PetDbHelper.class.getSimpleName();
+
+    //Index names
+    static final String INDEX_PET_NAME = "pets_name_index";
+    static final String INDEX_PET_BREED = "pets_breed_index";
+    static final String INDEX_PET_GENDER_WEIGHT = "pets_gender_weight_index";
+
+    //Triggers on the pets table
+    private static final String[] PET_TRIGGERS = {
+            "pets_fts_before_update", "pets_fts_before_delete",
+            "pets_fts_after_update", "pets_fts_after_insert",
+            "pets_stats_after_insert", "pets_stats_after_update", "pets_stats_after_delete",
+            "pets_changes_after_insert", "pets_changes_after_update", "pets_changes_after_delete"
+    };
+
+    //Views over the pets table
+    private static final String[] PET_VIEWS = { PetEntry.VIEW_NAME, PetEntry.FTS_CONTENT_VIEW_NAME };
+
+    //Names of the tables truncatePets() leaves for reclaimTrash(), followed by a unique suffix
+    private static final String PETS_TRASH_PREFIX = "pets_trash_";
+    private static final String FTS_TRASH_PREFIX = "pets_fts_trash_";
+
+    //Versions kept in the change log. Every CHANGE_LOG_COMPACT_INTERVAL versions, the older
+    //ones are dropped, so the log never has more than the sum of both rows.
+    static final int CHANGE_LOG_SIZE = 10000;
+    static final int CHANGE_LOG_COMPACT_INTERVAL = 1000;
+
+    //PRAGMA auto_vacuum value that lets PRAGMA incremental_vacuum free pages
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    //Checkpoint the WAL into the database file once it grows past this many pages (SQLite's default)
+    static final int DEFAULT_WAL_AUTO_CHECKPOINT_PAGES = 1000;
+
+    //Truncate the WAL file back to this size after a checkpoint, so one big import doesn't
+    //leave a huge file behind
+    static final long DEFAULT_JOURNAL_SIZE_LIMIT_BYTES = 4 * 1024 * 1024;
+
+    private final int mWalAutoCheckpointPages;
+    private final long mJournalSizeLimitBytes;
 
     /**
      * Constructs a new instance of PetDbHelper
@@ -21,7 +72,194 @@ public class PetDbHelper extends SQLiteOpenHelper {
      * @param context of the app
      */
     public PetDbHelper(Context context) {
+        this(context, DEFAULT_WAL_AUTO_CHECKPOINT_PAGES, DEFAULT_JOURNAL_SIZE_LIMIT_BYTES);
+    }
+
+    /**
+     * Constructs a new instance of PetDbHelper with its own checkpoint settings.
+     *
+     * @param context                of the app
+     * @param walAutoCheckpointPages checkpoint when the WAL has this many pages, 0 to only
+     *                               checkpoint when {@link #checkpoint(SQLiteDatabase)} is called
+     * @param journalSizeLimitBytes  size the WAL file is truncated to after a checkpoint, -1 for no limit
+     */
+    public PetDbHelper(Context context, int walAutoCheckpointPages, long journalSizeLimitBytes) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mWalAutoCheckpointPages = walAutoCheckpointPages;
+        mJournalSizeLimitBytes = journalSizeLimitBytes;
+
+        //Write-ahead logging: readers see the last commit and don't wait for a writer,
+        //so a long import or delete doesn't block the catalog's loader.
+        //SQLiteDatabase then keeps a pool of read connections next to the write connection.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    /**
+     * This is called every time the database is opened, after it is created or upgraded.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+
+        if (db.isReadOnly()) {
+            return;
+        }
+
+        //setWriteAheadLoggingEnabled() is not there before Jelly Bean
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            db.enableWriteAheadLogging();
+        }
+
+        //PRAGMAs that return a row must be run as a query
+        DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint=" + mWalAutoCheckpointPages, null);
+        DatabaseUtils.longForQuery(db, "PRAGMA journal_size_limit=" + mJournalSizeLimitBytes, null);
+    }
+
+    /**
+     * Copy what is in the WAL back into the database file, without waiting for readers.
+     * Call it after a big write, so the WAL does not keep growing when readers never let
+     * the automatic checkpoint finish.
+     */
+    void checkpoint(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Remove all the pets in constant time, in the caller's transaction.
+     * The pets table and its full-text index are renamed to trash tables and empty ones take
+     * their place, so no row is touched. Call {@link #reclaimTrash(SQLiteDatabase)} afterwards,
+     * outside of the transaction, to drop the trash and rebuild the indexes.
+     * Returns the number of pets removed.
+     */
+    int truncatePets(SQLiteDatabase db) {
+        int count = (int) DatabaseUtils.longForQuery(db, "SELECT IFNULL(SUM("
+                + PetStatsEntry.COLUMN_PET_COUNT + "), 0) FROM " + PetStatsEntry.GENDER_TABLE_NAME, null);
+
+        //The triggers and views would follow the old table, and their names are needed for the new one
+        for (String trigger : PET_TRIGGERS) {
+            db.execSQL("DROP TRIGGER IF EXISTS " + trigger + ";");
+        }
+        for (String view : PET_VIEWS) {
+            db.execSQL("DROP VIEW IF EXISTS " + view + ";");
+        }
+
+        String suffix = Long.toString(System.currentTimeMillis());
+        while (DatabaseUtils.queryNumEntries(db, "sqlite_master", "name IN (?, ?)",
+                new String[] { PETS_TRASH_PREFIX + suffix, FTS_TRASH_PREFIX + suffix }) > 0) {
+            suffix += "_";
+        }
+        //The indexes and the AUTOINCREMENT counter go with the renamed table
+        db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " RENAME TO " + PETS_TRASH_PREFIX + suffix + ";");
+        db.execSQL("ALTER TABLE " + PetEntry.FTS_TABLE_NAME + " RENAME TO " + FTS_TRASH_PREFIX + suffix + ";");
+
+        //The index names are still taken, so the indexes are created by reclaimTrash()
+        createPetsTable(db);
+        createPetViews(db);
+        createFtsTable(db);
+        createStatsTriggers(db);
+        createChangeTriggers(db);
+
+        //Keep counting _IDs where the old table stopped, so the URI of a deleted pet never
+        //points to a new one
+        db.execSQL("INSERT INTO sqlite_sequence (name, seq) SELECT '" + PetEntry.TABLE_NAME
+                + "', seq FROM sqlite_sequence WHERE name = '" + PETS_TRASH_PREFIX + suffix + "';");
+
+        db.execSQL("DELETE FROM " + PetStatsEntry.GENDER_TABLE_NAME + ";");
+        db.execSQL("DELETE FROM " + PetStatsEntry.BREED_TABLE_NAME + ";");
+
+        //No pet uses them any more. The trash still points at them, but its breeds are never read.
+        //Deletes and updates of fewer pets drop the breeds they leave unused themselves.
+        db.execSQL("DELETE FROM " + BreedEntry.TABLE_NAME + ";");
+
+        //The truncate takes a version of its own, and the log starts over after it:
+        //changes since any earlier version are a reset
+        db.execSQL("UPDATE sqlite_sequence SET seq = seq + 1 WHERE name = '"
+                + PetChangeEntry.TABLE_NAME + "';");
+        db.execSQL("UPDATE " + PetChangeEntry.FLOOR_TABLE_NAME + " SET "
+                + PetChangeEntry.COLUMN_VERSION + " = (SELECT seq FROM sqlite_sequence WHERE name = '"
+                + PetChangeEntry.TABLE_NAME + "');");
+        db.execSQL("DELETE FROM " + PetChangeEntry.TABLE_NAME + ";");
+        return count;
+    }
+
+    /**
+     * Returns the version of the last change to the pets.
+     */
+    long getChangeVersion(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT seq FROM sqlite_sequence WHERE name = '"
+                + PetChangeEntry.TABLE_NAME + "'", null);
+    }
+
+    /**
+     * Returns the highest version dropped from the change log. The changes since an older
+     * version are not all there any more.
+     */
+    long getChangeLogFloor(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT " + PetChangeEntry.COLUMN_VERSION
+                + " FROM " + PetChangeEntry.FLOOR_TABLE_NAME, null);
+    }
+
+    /**
+     * Drop the trash tables left by {@link #truncatePets(SQLiteDatabase)}, create the indexes
+     * of the pets table again, and give the freed pages back to the file system.
+     * Takes as long as the trash is big, so run it on a background thread.
+     * Each step is its own transaction, so other writes get in between.
+     * With no trash and the indexes in place it only reads the schema, and writes nothing.
+     */
+    void reclaimTrash(SQLiteDatabase db) {
+        //Virtual tables first: dropping them drops their own shadow tables
+        ArrayList<String> trash = new ArrayList<String>();
+        Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table'"
+                + " AND (name GLOB '" + PETS_TRASH_PREFIX + "*' OR name GLOB '" + FTS_TRASH_PREFIX + "*')"
+                + " ORDER BY sql LIKE 'CREATE VIRTUAL TABLE%' DESC", null);
+        try {
+            while (cursor.moveToNext()) {
+                trash.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        //Nothing truncated since the last reclaim, which went all the way
+        if (trash.isEmpty() && DatabaseUtils.queryNumEntries(db, "sqlite_master",
+                "type = 'index' AND name IN (?, ?, ?)",
+                new String[] { INDEX_PET_NAME, INDEX_PET_BREED, INDEX_PET_GENDER_WEIGHT }) == 3) {
+            return;
+        }
+
+        for (String table : trash) {
+            Log.i(LOG_TAG, "Dropping " + table);
+            db.execSQL("DROP TABLE IF EXISTS " + table + ";");
+        }
+
+        //Also after a crash between dropping the trash and this
+        createPetIndexes(db);
+
+        if (trash.isEmpty()) {
+            return;
+        }
+
+        //Incremental vacuum needs auto_vacuum, which only a full VACUUM can turn on for a
+        //database that has tables. Do it once, right after the trash is gone, while it is cheap.
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL) {
+            db.execSQL("PRAGMA auto_vacuum = " + AUTO_VACUUM_INCREMENTAL + ";");
+            db.execSQL("VACUUM;");
+        }
+        //Truncates the free pages off the end of the file. Returns no row but must be stepped.
+        cursor = db.rawQuery("PRAGMA incremental_vacuum", null);
+        try {
+            cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+        checkpoint(db);
     }
 
     /**
@@ -41,13 +279,435 @@ public class PetDbHelper extends SQLiteOpenHelper {
 
         //execSQL は static ではないので、インスタンスメソッドなので、インスタンス経由で参照
         db.execSQL(SQL_CREATE_ENTRIES);
+
+        //That was the version 1 schema. Bring it to the current version with the same steps
+        //an existing database goes through, so new and upgraded databases never differ.
+        onUpgrade(db, 1, DATABASE_VERSION);
     }
 
+    /**
+     * This is called when the database on disk is older than DATABASE_VERSION.
+     * Upgrades one version at a time, keeping the data.
+     */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 
-        final String SQL_DELETE_ENTRIES =
-                "DROP TABLE IF EXISTS " + PetEntry.TABLE_NAME;
-        db.execSQL(SQL_DELETE_ENTRIES);
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            Log.i(LOG_TAG, "Upgrading database to version " + version);
+            upgradeTo(db, version);
+        }
+    }
+
+    /**
+     * Migrate the schema from version - 1 to version.
+     * A step must never change once released, add a new version instead.
+     */
+    private void upgradeTo(SQLiteDatabase db, int version) {
+        switch (version) {
+            case 2:
+                //Indexes for filtered and sorted queries, so they don't scan the whole table
+                db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_PET_NAME + " ON "
+                        + PetEntry.TABLE_NAME + " (" + PetEntry.COLUMN_PET_NAME + ");");
+                db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_PET_BREED + " ON "
+                        + PetEntry.TABLE_NAME + " (" + PetEntry.COLUMN_PET_BREED + ");");
+                db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_PET_GENDER_WEIGHT + " ON "
+                        + PetEntry.TABLE_NAME + " (" + PetEntry.COLUMN_PET_GENDER + ", "
+                        + PetEntry.COLUMN_PET_WEIGHT + ");");
+                break;
+            case 3:
+                //Full-text index over name and breed, kept in sync by triggers.
+                //It keeps no copy of the text, it reads it from the pets table ("external content").
+                db.execSQL("CREATE VIRTUAL TABLE " + PetEntry.FTS_TABLE_NAME + " USING fts4("
+                        + "content=\"" + PetEntry.TABLE_NAME + "\", "
+                        + PetEntry.COLUMN_PET_NAME + ", "
+                        + PetEntry.COLUMN_PET_BREED + ");");
+                db.execSQL("CREATE TRIGGER pets_fts_before_update BEFORE UPDATE ON "
+                        + PetEntry.TABLE_NAME + " BEGIN "
+                        + "DELETE FROM " + PetEntry.FTS_TABLE_NAME + " WHERE docid = old._id; END;");
+                db.execSQL("CREATE TRIGGER pets_fts_before_delete BEFORE DELETE ON "
+                        + PetEntry.TABLE_NAME + " BEGIN "
+                        + "DELETE FROM " + PetEntry.FTS_TABLE_NAME + " WHERE docid = old._id; END;");
+                db.execSQL("CREATE TRIGGER pets_fts_after_update AFTER UPDATE ON "
+                        + PetEntry.TABLE_NAME + " BEGIN "
+                        + "INSERT INTO " + PetEntry.FTS_TABLE_NAME + " (docid, "
+                        + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ") "
+                        + "VALUES (new._id, new." + PetEntry.COLUMN_PET_NAME
+                        + ", new." + PetEntry.COLUMN_PET_BREED + "); END;");
+                db.execSQL("CREATE TRIGGER pets_fts_after_insert AFTER INSERT ON "
+                        + PetEntry.TABLE_NAME + " BEGIN "
+                        + "INSERT INTO " + PetEntry.FTS_TABLE_NAME + " (docid, "
+                        + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ") "
+                        + "VALUES (new._id, new." + PetEntry.COLUMN_PET_NAME
+                        + ", new." + PetEntry.COLUMN_PET_BREED + "); END;");
+
+                //Index the pets that are already there
+                db.execSQL("INSERT INTO " + PetEntry.FTS_TABLE_NAME + " ("
+                        + PetEntry.FTS_TABLE_NAME + ") VALUES ('rebuild');");
+                break;
+            case 4:
+                //Counts and weight totals per gender and per breed. Triggers move each pet
+                //in and out of its groups, so reading them never has to go through the pets.
+                db.execSQL("CREATE TABLE " + PetStatsEntry.GENDER_TABLE_NAME + " ("
+                        + PetStatsEntry.COLUMN_GENDER + " INTEGER PRIMARY KEY, "
+                        + PetStatsEntry.COLUMN_PET_COUNT + " INTEGER NOT NULL DEFAULT 0, "
+                        + PetStatsEntry.COLUMN_TOTAL_WEIGHT + " INTEGER NOT NULL DEFAULT 0);");
+                //A NULL primary key would not be unique, so pets without a breed count under ''
+                db.execSQL("CREATE TABLE " + PetStatsEntry.BREED_TABLE_NAME + " ("
+                        + PetStatsEntry.COLUMN_BREED + " TEXT PRIMARY KEY NOT NULL, "
+                        + PetStatsEntry.COLUMN_PET_COUNT + " INTEGER NOT NULL DEFAULT 0, "
+                        + PetStatsEntry.COLUMN_TOTAL_WEIGHT + " INTEGER NOT NULL DEFAULT 0);");
+
+                db.execSQL("CREATE TRIGGER pets_stats_after_insert AFTER INSERT ON "
+                        + PetEntry.TABLE_NAME + " BEGIN "
+                        + addToStats("new", "new." + PetEntry.COLUMN_PET_BREED) + "END;");
+                db.execSQL("CREATE TRIGGER pets_stats_after_update AFTER UPDATE OF "
+                        + PetEntry.COLUMN_PET_BREED + ", " + PetEntry.COLUMN_PET_GENDER + ", "
+                        + PetEntry.COLUMN_PET_WEIGHT + " ON " + PetEntry.TABLE_NAME + " BEGIN "
+                        + removeFromStats("old", "old." + PetEntry.COLUMN_PET_BREED)
+                        + addToStats("new", "new." + PetEntry.COLUMN_PET_BREED) + "END;");
+                db.execSQL("CREATE TRIGGER pets_stats_after_delete AFTER DELETE ON "
+                        + PetEntry.TABLE_NAME + " BEGIN "
+                        + removeFromStats("old", "old." + PetEntry.COLUMN_PET_BREED) + "END;");
+
+                //Count the pets that are already there
+                db.execSQL("INSERT INTO " + PetStatsEntry.GENDER_TABLE_NAME + " ("
+                        + PetStatsEntry.COLUMN_GENDER + ", " + PetStatsEntry.COLUMN_PET_COUNT + ", "
+                        + PetStatsEntry.COLUMN_TOTAL_WEIGHT + ") SELECT "
+                        + PetEntry.COLUMN_PET_GENDER + ", COUNT(*), SUM(" + PetEntry.COLUMN_PET_WEIGHT
+                        + ") FROM " + PetEntry.TABLE_NAME + " GROUP BY " + PetEntry.COLUMN_PET_GENDER + ";");
+                db.execSQL("INSERT INTO " + PetStatsEntry.BREED_TABLE_NAME + " ("
+                        + PetStatsEntry.COLUMN_BREED + ", " + PetStatsEntry.COLUMN_PET_COUNT + ", "
+                        + PetStatsEntry.COLUMN_TOTAL_WEIGHT + ") SELECT "
+                        + breedKey(PetEntry.COLUMN_PET_BREED) + ", COUNT(*), SUM(" + PetEntry.COLUMN_PET_WEIGHT
+                        + ") FROM " + PetEntry.TABLE_NAME + " GROUP BY "
+                        + breedKey(PetEntry.COLUMN_PET_BREED) + ";");
+                break;
+            case 5:
+                //Each breed name stored once. Pets keep the breed's _ID, so the name no longer
+                //repeats on every row and in the breed index.
+                db.execSQL("CREATE TABLE " + BreedEntry.TABLE_NAME + " ("
+                        + BreedEntry._ID + " INTEGER PRIMARY KEY, "
+                        + BreedEntry.COLUMN_BREED_NAME + " TEXT NOT NULL UNIQUE);");
+                db.execSQL("INSERT INTO " + BreedEntry.TABLE_NAME + " (" + BreedEntry.COLUMN_BREED_NAME
+                        + ") SELECT DISTINCT " + PetEntry.COLUMN_PET_BREED + " FROM " + PetEntry.TABLE_NAME
+                        + " WHERE " + PetEntry.COLUMN_PET_BREED + " IS NOT NULL;");
+
+                //The full-text index and the triggers are made again for the new table
+                for (String trigger : PET_TRIGGERS) {
+                    db.execSQL("DROP TRIGGER IF EXISTS " + trigger + ";");
+                }
+                db.execSQL("DROP TABLE " + PetEntry.FTS_TABLE_NAME + ";");
+
+                //SQLite can't change a column, so copy the pets into a new table.
+                //The old indexes go with the old table.
+                String oldTable = PetEntry.TABLE_NAME + "_v4";
+                db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " RENAME TO " + oldTable + ";");
+                createPetsTable(db);
+                db.execSQL("INSERT INTO " + PetEntry.TABLE_NAME + " (" + PetEntry._ID + ", "
+                        + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED_ID + ", "
+                        + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ") SELECT "
+                        + oldTable + "." + PetEntry._ID + ", " + oldTable + "." + PetEntry.COLUMN_PET_NAME
+                        + ", " + BreedEntry.TABLE_NAME + "." + BreedEntry._ID + ", "
+                        + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT
+                        + " FROM " + oldTable + " LEFT JOIN " + BreedEntry.TABLE_NAME + " ON "
+                        + BreedEntry.TABLE_NAME + "." + BreedEntry.COLUMN_BREED_NAME + " = "
+                        + oldTable + "." + PetEntry.COLUMN_PET_BREED + ";");
+
+                //Keep counting _IDs where the old table stopped, even past its last pet
+                db.execSQL("DELETE FROM sqlite_sequence WHERE name = '" + PetEntry.TABLE_NAME + "';");
+                db.execSQL("INSERT INTO sqlite_sequence (name, seq) SELECT '" + PetEntry.TABLE_NAME
+                        + "', seq FROM sqlite_sequence WHERE name = '" + oldTable + "';");
+                db.execSQL("DROP TABLE " + oldTable + ";");
+
+                createPetIndexes(db);
+                createPetViews(db);
+                createFtsTable(db);
+                db.execSQL("INSERT INTO " + PetEntry.FTS_TABLE_NAME + " ("
+                        + PetEntry.FTS_TABLE_NAME + ") VALUES ('rebuild');");
+
+                //The stats are still keyed by the breed's name, they stay as they are
+                createStatsTriggers(db);
+                break;
+            case 6:
+                //Change log: the last change of each pet, under the version it took.
+                //AUTOINCREMENT never gives a version twice, even after the last rows are deleted.
+                db.execSQL("CREATE TABLE " + PetChangeEntry.TABLE_NAME + " ("
+                        + PetChangeEntry.COLUMN_VERSION + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                        + PetChangeEntry.COLUMN_PET_ID + " INTEGER NOT NULL UNIQUE, "
+                        + PetChangeEntry.COLUMN_CHANGE + " INTEGER NOT NULL);");
+                db.execSQL("CREATE TABLE " + PetChangeEntry.FLOOR_TABLE_NAME + " ("
+                        + PetChangeEntry.COLUMN_VERSION + " INTEGER NOT NULL);");
+
+                //The pets already there were never logged, so version 1 stands for them:
+                //changes since version 0 are a reset
+                db.execSQL("INSERT INTO sqlite_sequence (name, seq) VALUES ('"
+                        + PetChangeEntry.TABLE_NAME + "', 1);");
+                db.execSQL("INSERT INTO " + PetChangeEntry.FLOOR_TABLE_NAME + " ("
+                        + PetChangeEntry.COLUMN_VERSION + ") VALUES (1);");
+
+                //Every CHANGE_LOG_COMPACT_INTERVAL versions, drop what is older than the last
+                //CHANGE_LOG_SIZE. The versions are the rowids, so that deletes a range of rows.
+                db.execSQL("CREATE TRIGGER pet_changes_compact AFTER INSERT ON "
+                        + PetChangeEntry.TABLE_NAME + " WHEN new." + PetChangeEntry.COLUMN_VERSION
+                        + " % " + CHANGE_LOG_COMPACT_INTERVAL + " = 0 AND new."
+                        + PetChangeEntry.COLUMN_VERSION + " > " + CHANGE_LOG_SIZE + " BEGIN "
+                        + "UPDATE " + PetChangeEntry.FLOOR_TABLE_NAME + " SET "
+                        + PetChangeEntry.COLUMN_VERSION + " = MAX(" + PetChangeEntry.COLUMN_VERSION
+                        + ", new." + PetChangeEntry.COLUMN_VERSION + " - " + CHANGE_LOG_SIZE + "); "
+                        + "DELETE FROM " + PetChangeEntry.TABLE_NAME + " WHERE "
+                        + PetChangeEntry.COLUMN_VERSION + " <= new." + PetChangeEntry.COLUMN_VERSION
+                        + " - " + CHANGE_LOG_SIZE + "; END;");
+
+                createChangeTriggers(db);
+                break;
+            default:
+                throw new IllegalStateException("No upgrade step to version " + version);
+        }
+    }
+
+    //The create*() methods below make the current schema of the pets table and what hangs
+    //off it. The latest upgrade step and truncatePets() share them. When a new version changes one of
+    //them, first copy its old SQL into the older steps, so those steps never change.
+
+    private static void createPetsTable(SQLiteDatabase db) {
+        //Create a String for SQL statement to create pets table
+        final String SQL_CREATE_ENTRIES =
+                "CREATE TABLE " + PetEntry.TABLE_NAME + " ("
+                        + PetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                        + PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL, "
+                        + PetEntry.COLUMN_PET_BREED_ID + " INTEGER REFERENCES "
+                        + BreedEntry.TABLE_NAME + " (" + BreedEntry._ID + "), "
+                        + PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, "
+                        + PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0);";
+
+        db.execSQL(SQL_CREATE_ENTRIES);
+    }
+
+    private static void createPetIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_PET_NAME + " ON "
+                + PetEntry.TABLE_NAME + " (" + PetEntry.COLUMN_PET_NAME + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_PET_BREED + " ON "
+                + PetEntry.TABLE_NAME + " (" + PetEntry.COLUMN_PET_BREED_ID + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_PET_GENDER_WEIGHT + " ON "
+                + PetEntry.TABLE_NAME + " (" + PetEntry.COLUMN_PET_GENDER + ", "
+                + PetEntry.COLUMN_PET_WEIGHT + ");");
+    }
+
+    /**
+     * The pets joined to the names of their breeds. Looking a breed up by its _ID is one
+     * step in the breeds table's primary key, and the filters on the pets columns still use
+     * the pets indexes, as SQLite reads the view as the join itself.
+     */
+    private static void createPetViews(SQLiteDatabase db) {
+        String join = " FROM " + PetEntry.TABLE_NAME + " LEFT JOIN " + BreedEntry.TABLE_NAME
+                + " ON " + BreedEntry.TABLE_NAME + "." + BreedEntry._ID + " = "
+                + PetEntry.TABLE_NAME + "." + PetEntry.COLUMN_PET_BREED_ID;
+        db.execSQL("CREATE VIEW " + PetEntry.VIEW_NAME + " AS SELECT "
+                + PetEntry.TABLE_NAME + "." + PetEntry._ID + " AS " + PetEntry._ID + ", "
+                + PetEntry.TABLE_NAME + "." + PetEntry.COLUMN_PET_NAME + " AS " + PetEntry.COLUMN_PET_NAME + ", "
+                + BreedEntry.TABLE_NAME + "." + BreedEntry.COLUMN_BREED_NAME + " AS " + PetEntry.COLUMN_PET_BREED + ", "
+                + PetEntry.TABLE_NAME + "." + PetEntry.COLUMN_PET_GENDER + " AS " + PetEntry.COLUMN_PET_GENDER + ", "
+                + PetEntry.TABLE_NAME + "." + PetEntry.COLUMN_PET_WEIGHT + " AS " + PetEntry.COLUMN_PET_WEIGHT
+                + join + ";");
+        //The full-text index finds the row of a pet by a column named rowid
+        db.execSQL("CREATE VIEW " + PetEntry.FTS_CONTENT_VIEW_NAME + " AS SELECT "
+                + PetEntry.TABLE_NAME + "." + PetEntry._ID + " AS rowid, "
+                + PetEntry.TABLE_NAME + "." + PetEntry.COLUMN_PET_NAME + " AS " + PetEntry.COLUMN_PET_NAME + ", "
+                + BreedEntry.TABLE_NAME + "." + BreedEntry.COLUMN_BREED_NAME + " AS " + PetEntry.COLUMN_PET_BREED
+                + join + ";");
+    }
+
+    /**
+     * Full-text index over name and breed, and the triggers keeping it in sync.
+     * It keeps no copy of the text, it reads it from the pets and their breed names
+     * ("external content"). Create the views first.
+     */
+    private static void createFtsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE " + PetEntry.FTS_TABLE_NAME + " USING fts4("
+                + "content=\"" + PetEntry.FTS_CONTENT_VIEW_NAME + "\", "
+                + PetEntry.COLUMN_PET_NAME + ", "
+                + PetEntry.COLUMN_PET_BREED + ");");
+
+        //Keep the index in sync. Old entries are removed BEFORE the row changes,
+        //because removing them needs the old text from the view.
+        db.execSQL("CREATE TRIGGER pets_fts_before_update BEFORE UPDATE ON "
+                + PetEntry.TABLE_NAME + " BEGIN "
+                + "DELETE FROM " + PetEntry.FTS_TABLE_NAME + " WHERE docid = old._id; END;");
+        db.execSQL("CREATE TRIGGER pets_fts_before_delete BEFORE DELETE ON "
+                + PetEntry.TABLE_NAME + " BEGIN "
+                + "DELETE FROM " + PetEntry.FTS_TABLE_NAME + " WHERE docid = old._id; END;");
+        db.execSQL("CREATE TRIGGER pets_fts_after_update AFTER UPDATE ON "
+                + PetEntry.TABLE_NAME + " BEGIN "
+                + "INSERT INTO " + PetEntry.FTS_TABLE_NAME + " (docid, "
+                + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ") "
+                + "VALUES (new._id, new." + PetEntry.COLUMN_PET_NAME
+                + ", " + breedName("new") + "); END;");
+        db.execSQL("CREATE TRIGGER pets_fts_after_insert AFTER INSERT ON "
+                + PetEntry.TABLE_NAME + " BEGIN "
+                + "INSERT INTO " + PetEntry.FTS_TABLE_NAME + " (docid, "
+                + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ") "
+                + "VALUES (new._id, new." + PetEntry.COLUMN_PET_NAME
+                + ", " + breedName("new") + "); END;");
+    }
+
+    private static void createStatsTriggers(SQLiteDatabase db) {
+        db.execSQL("CREATE TRIGGER pets_stats_after_insert AFTER INSERT ON "
+                + PetEntry.TABLE_NAME + " BEGIN "
+                + addToStats("new", breedName("new")) + "END;");
+        db.execSQL("CREATE TRIGGER pets_stats_after_update AFTER UPDATE OF "
+                + PetEntry.COLUMN_PET_BREED_ID + ", " + PetEntry.COLUMN_PET_GENDER + ", "
+                + PetEntry.COLUMN_PET_WEIGHT + " ON " + PetEntry.TABLE_NAME + " BEGIN "
+                + removeFromStats("old", breedName("old")) + addToStats("new", breedName("new")) + "END;");
+        db.execSQL("CREATE TRIGGER pets_stats_after_delete AFTER DELETE ON "
+                + PetEntry.TABLE_NAME + " BEGIN "
+                + removeFromStats("old", breedName("old")) + "END;");
+    }
+
+    /**
+     * Log every change to a pet. INSERT OR REPLACE drops the pet's previous change,
+     * and the new row takes the next version.
+     */
+    private static void createChangeTriggers(SQLiteDatabase db) {
+        db.execSQL("CREATE TRIGGER pets_changes_after_insert AFTER INSERT ON "
+                + PetEntry.TABLE_NAME + " BEGIN "
+                + logChange("new", PetChangeEntry.CHANGE_INSERT) + "END;");
+        //A new _ID is the old pet deleted
+        db.execSQL("CREATE TRIGGER pets_changes_after_update AFTER UPDATE ON "
+                + PetEntry.TABLE_NAME + " BEGIN "
+                + "INSERT OR REPLACE INTO " + PetChangeEntry.TABLE_NAME + " ("
+                + PetChangeEntry.COLUMN_PET_ID + ", " + PetChangeEntry.COLUMN_CHANGE + ") SELECT old."
+                + PetEntry._ID + ", " + PetChangeEntry.CHANGE_DELETE + " WHERE old." + PetEntry._ID
+                + " <> new." + PetEntry._ID + "; "
+                + logChange("new", PetChangeEntry.CHANGE_UPDATE) + "END;");
+        db.execSQL("CREATE TRIGGER pets_changes_after_delete AFTER DELETE ON "
+                + PetEntry.TABLE_NAME + " BEGIN "
+                + logChange("old", PetChangeEntry.CHANGE_DELETE) + "END;");
+    }
+
+    private static String logChange(String row, int change) {
+        return "INSERT OR REPLACE INTO " + PetChangeEntry.TABLE_NAME + " ("
+                + PetChangeEntry.COLUMN_PET_ID + ", " + PetChangeEntry.COLUMN_CHANGE + ") VALUES ("
+                + row + "." + PetEntry._ID + ", " + change + "); ";
+    }
+
+    /**
+     * Trigger statements counting the pet of the given trigger row ("new") in its groups.
+     * A group row is created the first time a pet joins it.
+     */
+    private static String addToStats(String row, String breed) {
+        return addToStats(PetStatsEntry.GENDER_TABLE_NAME, PetStatsEntry.COLUMN_GENDER,
+                row + "." + PetEntry.COLUMN_PET_GENDER, row)
+                + addToStats(PetStatsEntry.BREED_TABLE_NAME, PetStatsEntry.COLUMN_BREED,
+                breedKey(breed), row);
+    }
+
+    private static String addToStats(String table, String keyColumn, String key, String row) {
+        return "INSERT OR IGNORE INTO " + table + " (" + keyColumn + ") VALUES (" + key + "); "
+                + "UPDATE " + table + " SET "
+                + PetStatsEntry.COLUMN_PET_COUNT + " = " + PetStatsEntry.COLUMN_PET_COUNT + " + 1, "
+                + PetStatsEntry.COLUMN_TOTAL_WEIGHT + " = " + PetStatsEntry.COLUMN_TOTAL_WEIGHT
+                + " + " + row + "." + PetEntry.COLUMN_PET_WEIGHT
+                + " WHERE " + keyColumn + " = " + key + "; ";
+    }
+
+    /**
+     * Trigger statements taking the pet of the given trigger row ("old") out of its groups.
+     * A group row is removed when its last pet leaves it.
+     */
+    private static String removeFromStats(String row, String breed) {
+        return removeFromStats(PetStatsEntry.GENDER_TABLE_NAME, PetStatsEntry.COLUMN_GENDER,
+                row + "." + PetEntry.COLUMN_PET_GENDER, row)
+                + removeFromStats(PetStatsEntry.BREED_TABLE_NAME, PetStatsEntry.COLUMN_BREED,
+                breedKey(breed), row);
+    }
+
+    private static String removeFromStats(String table, String keyColumn, String key, String row) {
+        return "UPDATE " + table + " SET "
+                + PetStatsEntry.COLUMN_PET_COUNT + " = " + PetStatsEntry.COLUMN_PET_COUNT + " - 1, "
+                + PetStatsEntry.COLUMN_TOTAL_WEIGHT + " = " + PetStatsEntry.COLUMN_TOTAL_WEIGHT
+                + " - " + row + "." + PetEntry.COLUMN_PET_WEIGHT
+                + " WHERE " + keyColumn + " = " + key + "; "
+                + "DELETE FROM " + table + " WHERE " + keyColumn + " = " + key
+                + " AND " + PetStatsEntry.COLUMN_PET_COUNT + " = 0; ";
+    }
+
+    /**
+     * The key of a breed in the breed stats table.
+     */
+    private static String breedKey(String breed) {
+        return "IFNULL(" + breed + ", '')";
+    }
+
+    /**
+     * The breed name of the given trigger row ("new" or "old"), NULL when it has no breed.
+     */
+    private static String breedName(String row) {
+        return "(SELECT " + BreedEntry.COLUMN_BREED_NAME + " FROM " + BreedEntry.TABLE_NAME
+                + " WHERE " + BreedEntry._ID + " = " + row + "." + PetEntry.COLUMN_PET_BREED_ID + ")";
+    }
+
+    /**
+     * Returns the _ID of the breed with the given name, adding it to the breeds table the
+     * first time it is used. Call it in the transaction of the write that uses it.
+     */
+    static long getBreedId(SQLiteDatabase db, String breed) {
+        Cursor cursor = db.query(BreedEntry.TABLE_NAME, new String[] { BreedEntry._ID },
+                BreedEntry.COLUMN_BREED_NAME + "=?", new String[] { breed }, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                return cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(BreedEntry.COLUMN_BREED_NAME, breed);
+        return db.insertOrThrow(BreedEntry.TABLE_NAME, null, values);
+    }
+
+    /**
+     * Returns the _IDs of the breeds of the pets a delete or an update of their breed is going
+     * to change, for {@link #deleteUnusedBreeds(SQLiteDatabase, long[])} after it.
+     * Call it in the write's transaction.
+     *
+     * @param where selection on the pets table, null for all the pets
+     */
+    static long[] findBreedIds(SQLiteDatabase db, String where, String[] whereArgs) {
+        Cursor cursor = db.query(true, PetEntry.TABLE_NAME, new String[] { PetEntry.COLUMN_PET_BREED_ID },
+                where == null ? PetEntry.COLUMN_PET_BREED_ID + " IS NOT NULL"
+                        : PetEntry.COLUMN_PET_BREED_ID + " IS NOT NULL AND (" + where + ")",
+                whereArgs, null, null, null, null);
+        try {
+            long[] breedIds = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                breedIds[i] = cursor.getLong(0);
+            }
+            return breedIds;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Delete the breeds among these that no pet has any more, so the breeds table only holds
+     * breeds in use. Each breed is one lookup in the breed index.
+     * Call it in the write's transaction, after the write.
+     */
+    static void deleteUnusedBreeds(SQLiteDatabase db, long[] breedIds) {
+        if (breedIds.length == 0) {
+            return;
+        }
+        SQLiteStatement statement = db.compileStatement("DELETE FROM " + BreedEntry.TABLE_NAME
+                + " WHERE " + BreedEntry._ID + " = ?1 AND NOT EXISTS (SELECT 1 FROM "
+                + PetEntry.TABLE_NAME + " WHERE " + PetEntry.COLUMN_PET_BREED_ID + " = ?1)");
+        try {
+            for (long breedId : breedIds) {
+                statement.bindLong(1, breedId);
+                statement.executeUpdateDelete();
+            }
+        } finally {
+            statement.close();
+        }
     }
 }
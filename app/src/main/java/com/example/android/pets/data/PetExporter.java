@@ -0,0 +1,320 @@
+package com.example.android.pets.data;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+
+/**
+ * {@link PetExporter} writes the pets into the pipe of an export, as CSV, JSON or packed binary.
+ * All the pets, or those the KEY_EXPORT_* options of {@link PetContract} select.
+ * Pets are read a page at a time in _ID order and written as they come,
+ * so an export of any size only holds one page and one buffer in memory.
+ * A pet that changes during the export is written as it was when its page was read.
+ */
+class PetExporter {
+
+    private static final String LOG_TAG = PetExporter.class.getSimpleName();
+
+    // Pets read from the database at a time
+    private static final int PAGE_SIZE = 500;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+
+    private final PetDbHelper mDbHelper;
+
+    PetExporter(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Returns the read end of a pipe the pets are written into on a worker thread.
+     * From KitKat on the pipe is reliable: when the export fails part way, the reader gets
+     * an IOException from ParcelFileDescriptor.checkError() once it reached the end of the stream.
+     * Before KitKat the stream just ends early, which only the packed format can tell.
+     */
+    ParcelFileDescriptor openPipe(final Uri uri, final String mimeType, final Bundle opts)
+            throws FileNotFoundException {
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                    ? createReliablePipe() : ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Failed to create the export pipe: " + e.getMessage());
+        }
+
+        //The same executor ContentProvider.openPipeHelper writes on
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                String error = write(pipe[1], uri, mimeType, opts);
+                try {
+                    if (error != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                        closeWithError(pipe[1], error);
+                    } else {
+                        pipe[1].close();
+                    }
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Failed to close the export pipe of " + uri, e);
+                }
+                return null;
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        return pipe[0];
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static ParcelFileDescriptor[] createReliablePipe() throws IOException {
+        return ParcelFileDescriptor.createReliablePipe();
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static void closeWithError(ParcelFileDescriptor output, String error) throws IOException {
+        output.closeWithError(error);
+    }
+
+    /**
+     * Write the export into the pipe. Returns null when all of it was written,
+     * or why it stopped.
+     */
+    private String write(ParcelFileDescriptor output, Uri uri, String mimeType, Bundle opts) {
+        try {
+            //Not closed here: that would close the pipe's descriptor, which the caller closes
+            FileOutputStream stream = new FileOutputStream(output.getFileDescriptor());
+            if (PetEntry.MIME_TYPE_PACKED.equals(mimeType)) {
+                DataOutputStream data = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE));
+                writePacked(data, opts);
+                data.flush();
+                return null;
+            }
+            Writer writer = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"), BUFFER_SIZE);
+            if (PetEntry.MIME_TYPE_JSON.equals(mimeType)) {
+                writeJson(writer, opts);
+            } else {
+                writeCsv(writer, opts);
+            }
+            writer.flush();
+            return null;
+        } catch (IOException e) {
+            //Most likely the reader closed the pipe before the end
+            Log.w(LOG_TAG, "Export of " + uri + " stopped", e);
+            return "Export stopped: " + e.getMessage();
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Export of " + uri + " failed", e);
+            return "Export failed: " + e;
+        }
+    }
+
+    private void writeCsv(Writer writer, Bundle opts) throws IOException {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writer.write(COLUMNS[i]);
+        }
+        writer.write("\r\n");
+
+        long lastId = getAfterId(opts);
+        Cursor page;
+        while ((page = queryPage(lastId, opts)) != null) {
+            try {
+                while (page.moveToNext()) {
+                    lastId = page.getLong(0);
+                    writer.write(Long.toString(lastId));
+                    writer.write(',');
+                    writeCsvField(writer, page.getString(1));
+                    writer.write(',');
+                    writeCsvField(writer, page.getString(2));
+                    writer.write(',');
+                    writer.write(Integer.toString(page.getInt(3)));
+                    writer.write(',');
+                    writer.write(Integer.toString(page.getInt(4)));
+                    writer.write("\r\n");
+                }
+            } finally {
+                page.close();
+            }
+        }
+    }
+
+    /**
+     * Write a text field, quoted when it holds a separator, a quote or a line break (RFC 4180).
+     * A missing value is an empty field.
+     */
+    private static void writeCsvField(Writer writer, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quote) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    private void writeJson(Writer writer, Bundle opts) throws IOException {
+        //JsonWriter only buffers what it was given, so it streams like the CSV
+        JsonWriter json = new JsonWriter(writer);
+        json.beginArray();
+
+        long lastId = getAfterId(opts);
+        Cursor page;
+        while ((page = queryPage(lastId, opts)) != null) {
+            try {
+                while (page.moveToNext()) {
+                    lastId = page.getLong(0);
+                    json.beginObject();
+                    json.name(PetEntry._ID).value(lastId);
+                    json.name(PetEntry.COLUMN_PET_NAME).value(page.getString(1));
+                    json.name(PetEntry.COLUMN_PET_BREED).value(page.getString(2));
+                    json.name(PetEntry.COLUMN_PET_GENDER).value(page.getInt(3));
+                    json.name(PetEntry.COLUMN_PET_WEIGHT).value(page.getInt(4));
+                    json.endObject();
+                }
+            } finally {
+                page.close();
+            }
+        }
+
+        json.endArray();
+        json.flush();
+    }
+
+    /**
+     * Write each page of pets as a block of the packed format, see {@link PetEntry#MIME_TYPE_PACKED}.
+     * A block is put together in memory first, as its size comes before it.
+     */
+    private void writePacked(DataOutputStream output, Bundle opts) throws IOException {
+        ByteArrayOutputStream blockBytes = new ByteArrayOutputStream(BUFFER_SIZE);
+        DataOutputStream block = new DataOutputStream(blockBytes);
+
+        long lastId = getAfterId(opts);
+        Cursor page;
+        while ((page = queryPage(lastId, opts)) != null) {
+            try {
+                int count = page.getCount();
+                blockBytes.reset();
+                while (page.moveToNext()) {
+                    lastId = page.getLong(0);
+                    block.writeLong(lastId);
+                }
+                for (int column = 3; column <= 4; column++) {
+                    page.moveToPosition(-1);
+                    while (page.moveToNext()) {
+                        block.writeInt(page.getInt(column));
+                    }
+                }
+                page.moveToPosition(-1);
+                while (page.moveToNext()) {
+                    writePackedString(block, page.getString(1));
+                    writePackedString(block, page.getString(2));
+                }
+
+                output.writeInt(count);
+                output.writeInt(blockBytes.size());
+                blockBytes.writeTo(output);
+            } finally {
+                page.close();
+            }
+        }
+        output.writeInt(0);
+    }
+
+    private static void writePackedString(DataOutputStream block, String value) throws IOException {
+        if (value == null) {
+            block.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        block.writeInt(bytes.length);
+        block.write(bytes);
+    }
+
+    /**
+     * Throws IllegalArgumentException if the export options are invalid,
+     * so the caller hears about it instead of getting an empty export.
+     */
+    static void checkOptions(Bundle opts) {
+        if (opts != null && opts.containsKey(PetContract.KEY_EXPORT_GENDER)
+                && !PetEntry.isValidGender(opts.getInt(PetContract.KEY_EXPORT_GENDER))) {
+            throw new IllegalArgumentException("Unknown gender "
+                    + opts.get(PetContract.KEY_EXPORT_GENDER));
+        }
+    }
+
+    private static long getAfterId(Bundle opts) {
+        return opts == null ? 0 : opts.getLong(PetContract.KEY_EXPORT_AFTER_ID, 0);
+    }
+
+    /**
+     * Returns the next page of pets after the given _ID, or null when there are no more.
+     * Each page is its own short read, so the export never keeps a database connection busy.
+     */
+    private Cursor queryPage(long afterId, Bundle opts) {
+        StringBuilder selection = new StringBuilder(PetEntry._ID + ">?");
+        ArrayList<String> selectionArgs = new ArrayList<String>();
+        selectionArgs.add(String.valueOf(afterId));
+        if (opts != null) {
+            if (opts.containsKey(PetContract.KEY_EXPORT_UNTIL_ID)) {
+                selection.append(" AND " + PetEntry._ID + "<=?");
+                selectionArgs.add(String.valueOf(opts.getLong(PetContract.KEY_EXPORT_UNTIL_ID)));
+            }
+            if (opts.containsKey(PetContract.KEY_EXPORT_GENDER)) {
+                selection.append(" AND " + PetEntry.COLUMN_PET_GENDER + "=?");
+                selectionArgs.add(String.valueOf(opts.getInt(PetContract.KEY_EXPORT_GENDER)));
+            }
+            if (opts.containsKey(PetContract.KEY_EXPORT_MIN_WEIGHT)) {
+                selection.append(" AND " + PetEntry.COLUMN_PET_WEIGHT + ">=?");
+                selectionArgs.add(String.valueOf(opts.getInt(PetContract.KEY_EXPORT_MIN_WEIGHT)));
+            }
+            if (opts.containsKey(PetContract.KEY_EXPORT_MAX_WEIGHT)) {
+                selection.append(" AND " + PetEntry.COLUMN_PET_WEIGHT + "<=?");
+                selectionArgs.add(String.valueOf(opts.getInt(PetContract.KEY_EXPORT_MAX_WEIGHT)));
+            }
+        }
+
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        Cursor cursor = db.query(PetEntry.VIEW_NAME, COLUMNS, selection.toString(),
+                selectionArgs.toArray(new String[selectionArgs.size()]), null, null, PetEntry._ID,
+                String.valueOf(PAGE_SIZE));
+        if (cursor.getCount() == 0) {
+            cursor.close();
+            return null;
+        }
+        return cursor;
+    }
+}
@@ -0,0 +1,324 @@
+package com.example.android.pets.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.util.SparseArray;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Arrays;
+
+/**
+ * {@link PetKeysetCursor} is a cursor over all the pets matching a selection, in _ID order,
+ * that reads them in fixed-size blocks by _ID instead of through one big query.
+ *
+ * A SQLiteCursor refills its window by running the query again and skipping the rows before
+ * the new position, so moving around a big result gets slower the further down it goes.
+ * Here each block is its own short query starting after the last _ID of the block before it
+ * ("keyset"), so reading a block costs the same anywhere in the table.
+ * Only the blocks around the current position are kept. Blocks far from it are dropped.
+ *
+ * Where a block starts is learned as blocks are read. Jumping to a block not seen yet finds
+ * its start with one query that skips _IDs in the index without reading the rows, from the
+ * closest known block before it or from the end, whichever is closer. The last rows are as
+ * quick to reach as the first ones, the middle of a big table takes the longest.
+ *
+ * The count is taken when the cursor is made, and pets inserted after that are left out.
+ * Rows are read when their block is, so a pet changed after the cursor was made may show
+ * up changed. Pets deleted after it may shift the rows of the blocks read later, and end
+ * the rows early. Rows always come in _ID order within a block.
+ */
+class PetKeysetCursor extends AbstractCursor {
+
+    /**
+     * Runs the queries of the cursor on the pets view, like SQLiteDatabase.query() does.
+     * The provider runs them through its slow query log and cancellation.
+     */
+    interface BlockQuery {
+        Cursor query(String[] columns, String selection, String[] selectionArgs, String orderBy,
+                     String limit);
+    }
+
+    // Rows read by one query
+    static final int BLOCK_SIZE = 256;
+
+    // Blocks kept in memory: the current one and its neighbours
+    private static final int MAX_CACHED_BLOCKS = 4;
+
+    // Start of a block not found yet
+    private static final long UNKNOWN = -1;
+
+    private final BlockQuery mQuery;
+    private final String[] mColumnNames;
+
+    // What each block query asks for: the caller's columns, followed by _ID if they lack it
+    private final String[] mQueryColumns;
+    private final int mIdColumnIndex;
+
+    // Selection of the block queries, with the _ID the block starts after as first argument.
+    // Pets are also bounded by the last _ID when the cursor was made.
+    private final String mBlockSelection;
+    private final String[] mBlockSelectionArgs;
+
+    private final int mCount;
+
+    // mBlockStarts[k] is the _ID block k starts after, or UNKNOWN
+    private final long[] mBlockStarts;
+
+    // Rows of the cached blocks by block number, each row a value per query column
+    private final SparseArray<Object[][]> mBlocks = new SparseArray<Object[][]>();
+
+    // Row at the current position, null when it is not on a row
+    private Object[] mRow;
+
+    /**
+     * Counts the pets right away. Their rows are read as the cursor moves.
+     *
+     * @param query         runs the queries of the cursor
+     * @param projection    columns to return, must be columns of {@link PetEntry}
+     * @param selection     filter on the pets, or null for all of them
+     * @param selectionArgs arguments of the selection
+     */
+    PetKeysetCursor(BlockQuery query, String[] projection, String selection,
+                    String[] selectionArgs) {
+        mQuery = query;
+        mColumnNames = projection;
+
+        int idColumnIndex = Arrays.asList(projection).indexOf(PetEntry._ID);
+        if (idColumnIndex == -1) {
+            mQueryColumns = Arrays.copyOf(projection, projection.length + 1);
+            idColumnIndex = projection.length;
+            mQueryColumns[idColumnIndex] = PetEntry._ID;
+        } else {
+            mQueryColumns = projection;
+        }
+        mIdColumnIndex = idColumnIndex;
+
+        long lastId;
+        Cursor cursor = query.query(new String[] { "count(*)", "max(" + PetEntry._ID + ")" },
+                selection, selectionArgs, null, null);
+        try {
+            cursor.moveToFirst();
+            mCount = cursor.getInt(0);
+            lastId = cursor.getLong(1);
+        } finally {
+            cursor.close();
+        }
+
+        mBlockSelection = PetEntry._ID + ">? AND " + PetEntry._ID + "<=" + lastId
+                + (selection == null ? "" : " AND (" + selection + ")");
+        int argCount = selectionArgs == null ? 0 : selectionArgs.length;
+        mBlockSelectionArgs = new String[argCount + 1];
+        if (argCount > 0) {
+            System.arraycopy(selectionArgs, 0, mBlockSelectionArgs, 1, argCount);
+        }
+
+        mBlockStarts = new long[(mCount + BLOCK_SIZE - 1) / BLOCK_SIZE + 1];
+        Arrays.fill(mBlockStarts, UNKNOWN);
+        mBlockStarts[0] = 0;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        int block = newPosition / BLOCK_SIZE;
+        Object[][] rows = getBlock(block);
+        int row = newPosition % BLOCK_SIZE;
+        mRow = row < rows.length ? rows[row] : null;
+        return mRow != null;
+    }
+
+    /**
+     * Returns the rows of the block, from the cache or from the database.
+     */
+    private Object[][] getBlock(int block) {
+        Object[][] rows = mBlocks.get(block);
+        if (rows != null) {
+            return rows;
+        }
+
+        rows = readBlock(findBlockStart(block));
+        mBlocks.put(block, rows);
+
+        //The next block starts after the last row of this one
+        if (rows.length == BLOCK_SIZE && block + 1 < mBlockStarts.length) {
+            mBlockStarts[block + 1] = (Long) rows[BLOCK_SIZE - 1][mIdColumnIndex];
+        }
+
+        evictFarBlocks(block);
+        return rows;
+    }
+
+    /**
+     * Returns the _ID the block starts after, the _ID of the row before its first one.
+     * Found from the closest known block start before it, or from the end.
+     */
+    private long findBlockStart(int block) {
+        if (mBlockStarts[block] != UNKNOWN) {
+            return mBlockStarts[block];
+        }
+        int known = block - 1;
+        while (mBlockStarts[known] == UNKNOWN) {
+            known--;
+        }
+
+        //Rows to skip in the index, counting from either side
+        int fromKnown = (block - known) * BLOCK_SIZE - 1;
+        int fromEnd = mCount - block * BLOCK_SIZE;
+        boolean backward = fromEnd < fromKnown;
+        mBlockSelectionArgs[0] = String.valueOf(backward ? 0 : mBlockStarts[known]);
+
+        //Only the _ID of one row, SQLite skips the others in the index
+        Cursor cursor = mQuery.query(new String[] { PetEntry._ID }, mBlockSelection,
+                mBlockSelectionArgs, PetEntry._ID + (backward ? " DESC" : " ASC"),
+                (backward ? fromEnd : fromKnown) + ",1");
+        try {
+            if (!cursor.moveToFirst()) {
+                //Fewer pets than when the cursor was made: the block is empty
+                return Long.MAX_VALUE;
+            }
+            mBlockStarts[block] = cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+        return mBlockStarts[block];
+    }
+
+    private Object[][] readBlock(long afterId) {
+        mBlockSelectionArgs[0] = String.valueOf(afterId);
+        Cursor cursor = mQuery.query(mQueryColumns, mBlockSelection, mBlockSelectionArgs,
+                PetEntry._ID + " ASC", String.valueOf(BLOCK_SIZE));
+        try {
+            Object[][] rows = new Object[cursor.getCount()][];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                Object[] row = new Object[mQueryColumns.length];
+                for (int column = 0; column < row.length; column++) {
+                    switch (cursor.getType(column)) {
+                        case FIELD_TYPE_INTEGER:
+                            row[column] = cursor.getLong(column);
+                            break;
+                        case FIELD_TYPE_FLOAT:
+                            row[column] = cursor.getDouble(column);
+                            break;
+                        case FIELD_TYPE_STRING:
+                            row[column] = cursor.getString(column);
+                            break;
+                        case FIELD_TYPE_BLOB:
+                            row[column] = cursor.getBlob(column);
+                            break;
+                        default:
+                            row[column] = null;
+                    }
+                }
+                rows[i] = row;
+            }
+            return rows;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Drop the cached blocks furthest from the current one, down to MAX_CACHED_BLOCKS.
+     */
+    private void evictFarBlocks(int currentBlock) {
+        while (mBlocks.size() > MAX_CACHED_BLOCKS) {
+            int farthest = 0;
+            for (int i = 1; i < mBlocks.size(); i++) {
+                if (Math.abs(mBlocks.keyAt(i) - currentBlock)
+                        > Math.abs(mBlocks.keyAt(farthest) - currentBlock)) {
+                    farthest = i;
+                }
+            }
+            mBlocks.removeAt(farthest);
+        }
+    }
+
+    private Object value(int column) {
+        if (mRow == null) {
+            throw new IllegalStateException("Cursor is not on a row, position " + getPosition());
+        }
+        return mRow[column];
+    }
+
+    @Override
+    public int getType(int column) {
+        Object value = value(column);
+        if (value == null) {
+            return FIELD_TYPE_NULL;
+        } else if (value instanceof Long) {
+            return FIELD_TYPE_INTEGER;
+        } else if (value instanceof Double) {
+            return FIELD_TYPE_FLOAT;
+        } else if (value instanceof byte[]) {
+            return FIELD_TYPE_BLOB;
+        }
+        return FIELD_TYPE_STRING;
+    }
+
+    @Override
+    public String getString(int column) {
+        Object value = value(column);
+        return value == null ? null : value.toString();
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        Object value = value(column);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return value == null ? 0 : Long.parseLong(value.toString());
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        Object value = value(column);
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        return value == null ? 0 : Double.parseDouble(value.toString());
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        Object value = value(column);
+        return value instanceof byte[] ? (byte[]) value : null;
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return value(column) == null;
+    }
+
+    @Override
+    public boolean requery() {
+        //Rows are read again as they are reached
+        mBlocks.clear();
+        return super.requery();
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * {@link PetPackedReader} reads pets exported in the {@link PetEntry#MIME_TYPE_PACKED} format,
+ * a block at a time. The values of a block are decoded into arrays reused for the next one,
+ * so reading any number of pets only allocates the names and breeds.
+ *
+ * <pre>
+ * PetPackedReader reader = PetPackedReader.open(getContentResolver(), null);
+ * try {
+ *     while (reader.nextBlock()) {
+ *         for (int row = 0; row &lt; reader.getCount(); row++) {
+ *             ... reader.getId(row), reader.getName(row) ...
+ *         }
+ *     }
+ * } finally {
+ *     reader.close();
+ * }
+ * </pre>
+ */
+public class PetPackedReader implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final DataInputStream mInput;
+
+    // Bytes of the current block, after its two ints
+    private byte[] mBlock = new byte[BUFFER_SIZE];
+
+    private int mCount;
+    private long[] mIds = new long[0];
+    private int[] mGenders = new int[0];
+    private int[] mWeights = new int[0];
+    private String[] mNames = new String[0];
+    private String[] mBreeds = new String[0];
+
+    /**
+     * Export pets with {@link PetContract#METHOD_EXPORT_PACKED} and read them.
+     *
+     * @param options KEY_EXPORT_* values of {@link PetContract} selecting the pets, or null for all
+     */
+    public static PetPackedReader open(ContentResolver resolver, Bundle options) throws IOException {
+        Bundle result = resolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_EXPORT_PACKED, null, options);
+        ParcelFileDescriptor pipe = result == null ? null
+                : (ParcelFileDescriptor) result.getParcelable(PetContract.KEY_EXPORT_PIPE);
+        if (pipe == null) {
+            throw new IOException("No export pipe from " + PetEntry.CONTENT_URI);
+        }
+        return new PetPackedReader(new ParcelFileDescriptor.AutoCloseInputStream(pipe));
+    }
+
+    public PetPackedReader(InputStream input) {
+        mInput = new DataInputStream(new BufferedInputStream(input, BUFFER_SIZE));
+    }
+
+    /**
+     * Read the next block. Returns false at the end of the export.
+     * Throws EOFException if the export stopped before its end.
+     */
+    public boolean nextBlock() throws IOException {
+        int count = mInput.readInt();
+        if (count == 0) {
+            mCount = 0;
+            return false;
+        }
+        int length = mInput.readInt();
+        if (count < 0 || length < 0) {
+            throw new IOException("Invalid block of " + count + " pets in " + length + " bytes");
+        }
+        if (length > mBlock.length) {
+            mBlock = new byte[Math.max(length, mBlock.length * 2)];
+        }
+        mInput.readFully(mBlock, 0, length);
+
+        if (count > mIds.length) {
+            mIds = new long[count];
+            mGenders = new int[count];
+            mWeights = new int[count];
+            mNames = new String[count];
+            mBreeds = new String[count];
+        }
+
+        ByteBuffer block = ByteBuffer.wrap(mBlock, 0, length);
+        for (int row = 0; row < count; row++) {
+            mIds[row] = block.getLong();
+        }
+        for (int row = 0; row < count; row++) {
+            mGenders[row] = block.getInt();
+        }
+        for (int row = 0; row < count; row++) {
+            mWeights[row] = block.getInt();
+        }
+        for (int row = 0; row < count; row++) {
+            mNames[row] = readString(block);
+            mBreeds[row] = readString(block);
+        }
+        mCount = count;
+        return true;
+    }
+
+    private String readString(ByteBuffer block) {
+        int length = block.getInt();
+        if (length == -1) {
+            return null;
+        }
+        String value = new String(mBlock, block.position(), length, UTF_8);
+        block.position(block.position() + length);
+        return value;
+    }
+
+    /**
+     * Returns the number of pets in the current block.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    public long getId(int row) {
+        return mIds[checkRow(row)];
+    }
+
+    public String getName(int row) {
+        return mNames[checkRow(row)];
+    }
+
+    /**
+     * Returns the breed of the pet, or null if it has none.
+     */
+    public String getBreed(int row) {
+        return mBreeds[checkRow(row)];
+    }
+
+    public int getGender(int row) {
+        return mGenders[checkRow(row)];
+    }
+
+    public int getWeight(int row) {
+        return mWeights[checkRow(row)];
+    }
+
+    private int checkRow(int row) {
+        if (row < 0 || row >= mCount) {
+            throw new IndexOutOfBoundsException("Row " + row + " of a block of " + mCount);
+        }
+        return row;
+    }
+
+    /**
+     * Close the stream. The export stops if it was not read to the end.
+     */
+    @Override
+    public void close() throws IOException {
+        mInput.close();
+    }
+}
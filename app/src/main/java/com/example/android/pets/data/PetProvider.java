@@ -1,15 +1,45 @@
 package com.example.android.pets.data;
 
+import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.LruCache;
 
+import com.example.android.pets.data.PetContract.PetChangeEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetStatsEntry;
+
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 import static android.R.attr.id;
 import static android.R.attr.key;
@@ -23,6 +53,15 @@ public class PetProvider extends ContentProvider {
     //declare here and make this global
     private PetDbHelper mDbHelper;
 
+    //Writes the pets into the pipes opened on the export URI
+    private PetExporter mExporter;
+
+    //Calls and latencies of each operation, see PetContract.METHOD_GET_METRICS
+    private final PetProviderMetrics mMetrics = new PetProviderMetrics(PETS, URI_NAMES);
+
+    //Queries slower than a threshold, see PetContract.METHOD_GET_SLOW_QUERIES
+    private PetSlowQueryLog mSlowQueryLog;
+
     /**
      * URI matcher code for the content URI for the pets table
      */
@@ -33,6 +72,46 @@ public class PetProvider extends ContentProvider {
      */
     private static final int PET_ID = 101;
 
+    /**
+     * URI matcher code for the content URI to search pets
+     */
+    private static final int SEARCH = 102;
+
+    /**
+     * URI matcher codes for the content URIs of the pet counts per gender and per breed
+     */
+    private static final int STATS_GENDER = 103;
+    private static final int STATS_BREED = 104;
+
+    /**
+     * URI matcher code for the content URI to export all the pets as a file
+     */
+    private static final int EXPORT = 105;
+
+    /**
+     * URI matcher codes for the content URIs of the pets of one gender and of a weight range
+     */
+    private static final int FILTER_GENDER = 106;
+    private static final int FILTER_WEIGHT = 107;
+
+    /**
+     * URI matcher code for the content URI of the change log
+     */
+    private static final int CHANGES = 108;
+
+    /**
+     * Names of the kinds of URI in the metrics, in the order of the codes above.
+     */
+    private static final String[] URI_NAMES = {
+            "pets", "pet_id", "search", "stats_gender", "stats_breed", "export", "gender", "weight",
+            "changes" };
+
+    /**
+     * Formats the pets can be exported in, the default first.
+     */
+    private static final String[] EXPORT_MIME_TYPES = {
+            PetEntry.MIME_TYPE_CSV, PetEntry.MIME_TYPE_JSON, PetEntry.MIME_TYPE_PACKED };
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      */
@@ -46,6 +125,20 @@ public class PetProvider extends ContentProvider {
         // Provider should recognize them.
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS, PETS);
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/#", PET_ID);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_SEARCH, SEARCH);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/"
+                + PetContract.PATH_STATS + "/" + PetContract.PATH_GENDER, STATS_GENDER);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/"
+                + PetContract.PATH_STATS + "/" + PetContract.PATH_BREED, STATS_BREED);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_EXPORT, EXPORT);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_GENDER + "/#", FILTER_GENDER);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_WEIGHT, FILTER_WEIGHT);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_CHANGES, CHANGES);
     }
 
     /**
@@ -53,6 +146,66 @@ public class PetProvider extends ContentProvider {
      */
     public static final String LOG_TAG = PetProvider.class.getSimpleName();
 
+    /**
+     * Work held back while applyBatch() is running on this thread, until the batch transaction ends.
+     * null outside of a batch.
+     */
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<Batch>();
+
+    /**
+     * Signal of the query() running on this thread, that the caller uses to cancel it.
+     * null if the caller can't cancel, and always before Jelly Bean.
+     */
+    private final ThreadLocal<CancellationSignal> mQueryCancellation = new ThreadLocal<CancellationSignal>();
+
+    /**
+     * Runs the database upkeep that doesn't need to hold up the caller,
+     * like reclaiming the pages of a truncated table.
+     */
+    private final ExecutorService mMaintenanceExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * A write changing up to this many pets notifies the URI of each of them,
+     * so observers can reload just those rows. Bigger writes notify the table URI once.
+     */
+    private static final int MAX_ROW_NOTIFICATIONS = 50;
+
+    /**
+     * Number of single pets kept in {@link #mPetCache}.
+     */
+    private static final int PET_CACHE_SIZE = 64;
+
+    /**
+     * Columns of the change log, the default projection of {@link #CHANGES} queries.
+     */
+    private static final String[] CHANGE_COLUMNS = {
+            PetChangeEntry.COLUMN_VERSION,
+            PetChangeEntry.COLUMN_PET_ID,
+            PetChangeEntry.COLUMN_CHANGE
+    };
+
+    /**
+     * Columns of a cached pet. The cache keeps whole rows, so it can serve any projection of them.
+     */
+    private static final String[] PET_CACHE_COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+
+    /**
+     * Recently read pets by _ID, for PET_ID queries. Values follow {@link #PET_CACHE_COLUMNS}.
+     */
+    private final LruCache<Long, Object[]> mPetCache = new LruCache<Long, Object[]>(PET_CACHE_SIZE);
+
+    //Guards the two counters below, which tell a read whether it may put its row in the cache.
+    //A read that started before a write ended, or while one was running, may have read old data.
+    private final Object mPetCacheLock = new Object();
+    private long mPetCacheGeneration;
+    private int mPetWritesInProgress;
+
     /**
      * Initialize the provider and the database helper object.
      */
@@ -60,9 +213,59 @@ public class PetProvider extends ContentProvider {
     public boolean onCreate() {
 
         mDbHelper = new PetDbHelper(getContext());//Activity のコンテキストをゲットして渡す
+        mExporter = new PetExporter(mDbHelper);
+        mSlowQueryLog = new PetSlowQueryLog(mDbHelper);
+
+        //Open the database before the first query needs it
+        mMaintenanceExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                prewarm();
+            }
+        });
+
+        //Finish what a truncate killed before its reclaim left behind
+        scheduleReclaim();
         return true;
     }
 
+    /**
+     * Open the database and read the first page of the catalog, on the maintenance thread.
+     * The provider is created when the process starts, so this runs while the activity is
+     * still being created, and the catalog's first query finds the schema checked, a read
+     * connection open with its statement prepared, and the first pages in memory.
+     */
+    private void prewarm() {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            //Creates or upgrades the database if needed. A query arriving meanwhile waits for it.
+            SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+            //Same SQL as the catalog's query, so it reuses the prepared statement
+            Cursor cursor = queryPage(database,
+                    PetEntry.buildPageUri(0, PetEntry.CATALOG_PAGE_SIZE),
+                    PetEntry.CATALOG_PROJECTION, null, null, null);
+            cursor.close();
+        } catch (RuntimeException e) {
+            //The first query will open it and report the error
+            Log.e(LOG_TAG, "Failed to prewarm the database", e);
+            return;
+        }
+        Log.i(LOG_TAG, "Prewarmed the database in " + (SystemClock.elapsedRealtime() - start) + " ms");
+    }
+
+    /**
+     * Close the database. The system never calls this, it is for tests and benchmarks
+     * that create the provider themselves.
+     */
+    @Override
+    public void shutdown() {
+        mSlowQueryLog.shutdown();
+        mMaintenanceExecutor.shutdownNow();
+        mDbHelper.close();
+        mPetCache.evictAll();
+    }
+
     /**
      * Perform the query for the given URI.
      * Use the given projection, selection, selection arguments, and sort order.
@@ -71,24 +274,48 @@ public class PetProvider extends ContentProvider {
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
 
+        long start = System.nanoTime();
+
         // Get access to database with read mode
         SQLiteDatabase database = mDbHelper.getReadableDatabase();
 
         // This cursor will hold the result of the query
         Cursor cursor;
 
+        // The URI whose changes make the cursor stale
+        Uri notificationUri = uri;
+
         // Figure out if the URI matcher can match the URI to a specific code
         int match = sUriMatcher.match(uri);
 
         switch (match) {
             case PETS:
+                //A paged query if the uri has paging parameters
+                if (uri.getQueryParameter(PetEntry.QUERY_PARAM_AFTER) != null
+                        || uri.getQueryParameter(PetEntry.QUERY_PARAM_LIMIT) != null) {
+                    cursor = queryPage(database, uri, projection, selection, selectionArgs, sortOrder);
+                    break;
+                }
+
+                //Asked to read the rows a block at a time as the cursor moves
+                if (uri.getBooleanQueryParameter(PetEntry.QUERY_PARAM_BLOCKS, false)) {
+                    cursor = queryBlocks(database, projection, selection, selectionArgs, sortOrder);
+                    break;
+                }
+
                 //Use arguments for selection, selectionArgs and sortOrder.
                 // No need to specify where clause here. Do request for entire table.
-                cursor = database.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                cursor = runQuery(database, PetEntry.VIEW_NAME, projection, selection, selectionArgs,
+                        sortOrder, null);
                 break;
             case PET_ID:
 
+                //Served from the cache when the pet was read recently
+                cursor = queryCachedPet(ContentUris.parseId(uri), projection);
+                if (cursor != null) {
+                    break;
+                }
+
                 //the PET_ID code uri pattern requests for specific row.
                 // So construct a where clause.
                 selection = PetEntry._ID + "=?";
@@ -99,8 +326,40 @@ public class PetProvider extends ContentProvider {
                 // This will perform a query on the pets table where the _id equals 3 to return a
                 // Cursor containing that row of the table.
                 //This cursor is for return value
-                cursor = database.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                cursor = runQuery(database, PetEntry.VIEW_NAME, projection, selection, selectionArgs,
+                        sortOrder, null);
+                break;
+            case SEARCH:
+                cursor = querySearch(database, uri, projection, selection, selectionArgs, sortOrder);
+                break;
+            case FILTER_GENDER:
+            case FILTER_WEIGHT:
+                cursor = queryFilter(database, uri, match, projection, selection, selectionArgs,
+                        sortOrder);
+                //Changes are notified on the URIs of the pets, watch them all like the stats
+                notificationUri = PetEntry.CONTENT_URI;
+                break;
+            case STATS_GENDER:
+                if (sortOrder == null) {
+                    sortOrder = PetStatsEntry.COLUMN_GENDER;
+                }
+                cursor = runQuery(database, PetStatsEntry.GENDER_TABLE_NAME, projection, selection,
+                        selectionArgs, sortOrder, null);
+                //Any change to any pet changes the stats. Changes are notified on the URIs of
+                //the pets (not on the stats URIs), and watching the table URI catches them all.
+                notificationUri = PetEntry.CONTENT_URI;
+                break;
+            case STATS_BREED:
+                if (sortOrder == null) {
+                    sortOrder = PetStatsEntry.COLUMN_PET_COUNT + " DESC, " + PetStatsEntry.COLUMN_BREED;
+                }
+                cursor = runQuery(database, PetStatsEntry.BREED_TABLE_NAME, projection, selection,
+                        selectionArgs, sortOrder, null);
+                notificationUri = PetEntry.CONTENT_URI;
+                break;
+            case CHANGES:
+                cursor = queryChanges(database, uri, projection, selection, selectionArgs, sortOrder);
+                notificationUri = PetEntry.CONTENT_URI;
                 break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
@@ -108,10 +367,495 @@ public class PetProvider extends ContentProvider {
         //Set notification URI on the Cursor.
         // So we know what content URI the Cursor was created for.
 
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
+
+        //runQuery() already counted the rows, this doesn't run the query again
+        mMetrics.record(PetProviderMetrics.QUERY, match, start, cursor.getCount());
+        return cursor;
+    }
+
+    /**
+     * Same as the query above, stopped when the caller cancels it. The catalog cancels a search
+     * that was typed over, so it doesn't keep a read connection busy for nothing.
+     * Only the queries run through runQuery() stop early, the others run to the end.
+     */
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder, CancellationSignal cancellationSignal) {
+        mQueryCancellation.set(cancellationSignal);
+        try {
+            return query(uri, projection, selection, selectionArgs, sortOrder);
+        } finally {
+            mQueryCancellation.remove();
+        }
+    }
+
+    /**
+     * Run a query for query(), and log it if it is slow.
+     * Counting the rows runs the query and fills the first window. The caller would do it
+     * right after anyway (and does when the cursor crosses processes), so it costs nothing more
+     * and the time measured is the real work.
+     */
+    private Cursor runQuery(SQLiteDatabase database, String table, String[] projection, String selection,
+                            String[] selectionArgs, String sortOrder, String limit) {
+        return runQuery(database, table, projection, selection, selectionArgs, sortOrder, limit,
+                mQueryCancellation.get());
+    }
+
+    /**
+     * Same as above, stopped by the given signal instead of the one of the running query() call.
+     * For cursors that query again after query() returned.
+     */
+    private Cursor runQuery(SQLiteDatabase database, String table, String[] projection, String selection,
+                            String[] selectionArgs, String sortOrder, String limit,
+                            CancellationSignal cancellationSignal) {
+        long start = System.nanoTime();
+        Cursor cursor;
+        //Only Jelly Bean and later pass a signal, but the query taking it must not run before
+        if (cancellationSignal != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            cursor = database.query(false, table, projection, selection, selectionArgs, null, null,
+                    sortOrder, limit, cancellationSignal);
+        } else {
+            cursor = database.query(table, projection, selection, selectionArgs, null, null, sortOrder, limit);
+        }
+        cursor.getCount();
+
+        long nanos = System.nanoTime() - start;
+        if (mSlowQueryLog.isSlow(nanos)) {
+            mSlowQueryLog.record(SQLiteQueryBuilder.buildQueryString(false, table, projection,
+                    selection, null, null, sortOrder, limit), selectionArgs, nanos);
+        }
+        return cursor;
+    }
+
+
+    /**
+     * Query a single pet through the cache.
+     * On a miss the whole row is read from the database and put in the cache.
+     * Returns null if the projection asks for something other than the table's columns.
+     */
+    private Cursor queryCachedPet(long id, String[] projection) {
+
+        if (projection == null) {
+            projection = PET_CACHE_COLUMNS;
+        }
+
+        //Where each requested column is in a cached row
+        int[] columnIndexes = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columnIndexes[i] = -1;
+            for (int j = 0; j < PET_CACHE_COLUMNS.length; j++) {
+                if (PET_CACHE_COLUMNS[j].equals(projection[i])) {
+                    columnIndexes[i] = j;
+                    break;
+                }
+            }
+            if (columnIndexes[i] == -1) {
+                return null;
+            }
+        }
+
+        Object[] row = mPetCache.get(id);
+        if (row == null) {
+            row = readPetForCache(id);
+        }
+
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        if (row != null) {
+            Object[] values = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                values[i] = row[columnIndexes[i]];
+            }
+            cursor.addRow(values);
+        }
         return cursor;
     }
 
+    /**
+     * Read the whole row of a pet and put it in the cache, unless a write may have changed it
+     * while it was being read. Returns null if there is no such pet.
+     */
+    private Object[] readPetForCache(long id) {
+
+        long generation;
+        synchronized (mPetCacheLock) {
+            generation = mPetCacheGeneration;
+        }
+
+        Object[] row;
+        Cursor cursor = mDbHelper.getReadableDatabase().query(PetEntry.VIEW_NAME, PET_CACHE_COLUMNS,
+                PetEntry._ID + "=?", new String[] { String.valueOf(id) }, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            row = new Object[] {
+                    cursor.getLong(0),
+                    cursor.getString(1),
+                    cursor.getString(2),
+                    cursor.getInt(3),
+                    cursor.getInt(4)
+            };
+        } finally {
+            cursor.close();
+        }
+
+        synchronized (mPetCacheLock) {
+            if (generation == mPetCacheGeneration && mPetWritesInProgress == 0) {
+                mPetCache.put(id, row);
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Call before updating or deleting pets with the given selection.
+     * Stops reads from caching rows until {@link #endPetWrite(long[])},
+     * and returns the cached pets the write can change.
+     */
+    private long[] beginPetWrite(SQLiteDatabase db, String selection, String[] selectionArgs) {
+
+        synchronized (mPetCacheLock) {
+            mPetWritesInProgress++;
+            mPetCacheGeneration++;
+        }
+
+        Set<Long> cachedIds = mPetCache.snapshot().keySet();
+        if (cachedIds.isEmpty()) {
+            return new long[0];
+        }
+
+        //Only look at the cached rows, not the whole table
+        StringBuilder where = new StringBuilder(PetEntry._ID + " IN (");
+        boolean first = true;
+        for (Long cachedId : cachedIds) {
+            if (!first) {
+                where.append(',');
+            }
+            where.append(cachedId);
+            first = false;
+        }
+        where.append(')');
+        if (selection != null) {
+            where.append(" AND (").append(selection).append(')');
+        }
+
+        Cursor cursor;
+        try {
+            cursor = db.query(PetEntry.VIEW_NAME, new String[] { PetEntry._ID },
+                    where.toString(), selectionArgs, null, null, null);
+        } catch (RuntimeException e) {
+            //The write won't happen (bad selection), so end it here
+            endPetWrite(new long[0]);
+            throw e;
+        }
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Call when the write started with {@link #beginPetWrite} is done, even if it failed.
+     * Inside applyBatch() this waits until the batch transaction ends.
+     */
+    private void endPetWrite(long[] ids) {
+        Batch batch = mBatch.get();
+        if (batch != null) {
+            batch.petWrites.add(ids);
+            return;
+        }
+
+        synchronized (mPetCacheLock) {
+            for (long id : ids) {
+                mPetCache.remove(id);
+            }
+            mPetWritesInProgress--;
+            mPetCacheGeneration++;
+        }
+    }
+
+    /**
+     * Query one page of pets, using the after and limit parameters of the uri.
+     * Rows are ordered by _ID, and the page starts right after the given _ID,
+     * so SQLite seeks with the primary key instead of skipping rows like OFFSET does.
+     */
+    private Cursor queryPage(SQLiteDatabase database, Uri uri, String[] projection,
+                             String selection, String[] selectionArgs, String sortOrder) {
+
+        //Keyset paging only works in the order of the key
+        if (sortOrder != null && !sortOrder.trim().equalsIgnoreCase(PetEntry._ID)
+                && !sortOrder.trim().equalsIgnoreCase(PetEntry._ID + " ASC")) {
+            throw new IllegalArgumentException("Paged query must be ordered by _ID " + uri);
+        }
+
+        long afterId;
+        String limit = uri.getQueryParameter(PetEntry.QUERY_PARAM_LIMIT);
+        try {
+            String after = uri.getQueryParameter(PetEntry.QUERY_PARAM_AFTER);
+            afterId = after == null ? 0 : Long.parseLong(after);
+            if (limit != null && Integer.parseInt(limit) <= 0) {
+                throw new IllegalArgumentException("Paged query requires a positive limit " + uri);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid paging parameter " + uri, e);
+        }
+
+        //Put the key condition in front of the caller's selection
+        String pageSelection = PetEntry._ID + ">?";
+        String[] pageSelectionArgs = new String[] { String.valueOf(afterId) };
+        if (selection != null) {
+            pageSelection = pageSelection + " AND (" + selection + ")";
+            if (selectionArgs != null) {
+                pageSelectionArgs = new String[selectionArgs.length + 1];
+                pageSelectionArgs[0] = String.valueOf(afterId);
+                System.arraycopy(selectionArgs, 0, pageSelectionArgs, 1, selectionArgs.length);
+            }
+        }
+
+        return runQuery(database, PetEntry.VIEW_NAME, projection, pageSelection, pageSelectionArgs,
+                PetEntry._ID + " ASC", limit);
+    }
+
+    /**
+     * Query the pets of a gender and weight range, lightest first, then by _ID.
+     * That is the order of the (gender, weight) index, and each gender's entries in it end
+     * with the _ID, so SQLite reads the index from the first row of the page and stops at
+     * the limit. A page after a pet starts at that pet's weight, looked up by its _ID.
+     *
+     * Without a gender, the SQL lists all of them, so the index can still be searched by
+     * weight within each gender. Those rows are then sorted by weight, which costs as much
+     * as the number of pets in the range.
+     */
+    private Cursor queryFilter(SQLiteDatabase database, Uri uri, int match, String[] projection,
+                               String selection, String[] selectionArgs, String sortOrder) {
+
+        if (sortOrder != null) {
+            throw new IllegalArgumentException("Filtered query is ordered by weight and _ID " + uri);
+        }
+
+        StringBuilder where = new StringBuilder();
+        ArrayList<String> whereArgs = new ArrayList<String>();
+        if (match == FILTER_GENDER) {
+            long gender = ContentUris.parseId(uri);
+            if (gender > Integer.MAX_VALUE || !PetEntry.isValidGender((int) gender)) {
+                throw new IllegalArgumentException("Unknown gender " + uri);
+            }
+            where.append(PetEntry.COLUMN_PET_GENDER + "=?");
+            whereArgs.add(String.valueOf(gender));
+        } else {
+            where.append(PetEntry.COLUMN_PET_GENDER + " IN (" + PetEntry.GENDER_UNKNOWN + ","
+                    + PetEntry.GENDER_MALE + "," + PetEntry.GENDER_FEMALE + ")");
+        }
+
+        long afterId;
+        long minWeight;
+        long maxWeight;
+        String limit = uri.getQueryParameter(PetEntry.QUERY_PARAM_LIMIT);
+        try {
+            String after = uri.getQueryParameter(PetEntry.QUERY_PARAM_AFTER);
+            afterId = after == null ? 0 : Long.parseLong(after);
+            String min = uri.getQueryParameter(PetEntry.QUERY_PARAM_MIN_WEIGHT);
+            minWeight = min == null ? 0 : Long.parseLong(min);
+            String max = uri.getQueryParameter(PetEntry.QUERY_PARAM_MAX_WEIGHT);
+            maxWeight = max == null ? Long.MAX_VALUE : Long.parseLong(max);
+            if (limit != null && Integer.parseInt(limit) <= 0) {
+                throw new IllegalArgumentException("Paged query requires a positive limit " + uri);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid filter parameter " + uri, e);
+        }
+        where.append(" AND " + PetEntry.COLUMN_PET_WEIGHT + ">=? AND "
+                + PetEntry.COLUMN_PET_WEIGHT + "<=?");
+        whereArgs.add(String.valueOf(minWeight));
+        whereArgs.add(String.valueOf(maxWeight));
+
+        //The page starts right after the given pet in (weight, _ID) order
+        if (afterId > 0) {
+            Cursor afterPet = database.query(PetEntry.VIEW_NAME,
+                    new String[] { PetEntry.COLUMN_PET_WEIGHT }, PetEntry._ID + "=?",
+                    new String[] { String.valueOf(afterId) }, null, null, null);
+            long afterWeight;
+            try {
+                if (!afterPet.moveToFirst()) {
+                    //The pet was deleted. The page holding it is being loaded again.
+                    return new MatrixCursor(projection == null ? PET_CACHE_COLUMNS : projection);
+                }
+                afterWeight = afterPet.getLong(0);
+            } finally {
+                afterPet.close();
+            }
+            where.append(" AND " + PetEntry.COLUMN_PET_WEIGHT + ">=? AND ("
+                    + PetEntry.COLUMN_PET_WEIGHT + ">? OR " + PetEntry._ID + ">?)");
+            whereArgs.add(String.valueOf(afterWeight));
+            whereArgs.add(String.valueOf(afterWeight));
+            whereArgs.add(String.valueOf(afterId));
+        }
+
+        if (selection != null) {
+            where.append(" AND (").append(selection).append(')');
+            if (selectionArgs != null) {
+                whereArgs.addAll(Arrays.asList(selectionArgs));
+            }
+        }
+
+        return runQuery(database, PetEntry.VIEW_NAME, projection, where.toString(),
+                whereArgs.toArray(new String[whereArgs.size()]),
+                PetEntry.COLUMN_PET_WEIGHT + " ASC, " + PetEntry._ID + " ASC", limit);
+    }
+
+    /**
+     * Query the change log after the version given by the since parameter, oldest first.
+     * The versions are the rowids of the log, so this reads only the rows returned.
+     * Without since, or when the log was compacted past it, returns a single
+     * {@link PetChangeEntry#CHANGE_RESET} row with the current version instead.
+     */
+    private Cursor queryChanges(SQLiteDatabase database, Uri uri, String[] projection,
+                                String selection, String[] selectionArgs, String sortOrder) {
+
+        if (sortOrder != null) {
+            throw new IllegalArgumentException("Changes are ordered by version " + uri);
+        }
+
+        long sinceVersion;
+        String limit = uri.getQueryParameter(PetEntry.QUERY_PARAM_LIMIT);
+        try {
+            String since = uri.getQueryParameter(PetChangeEntry.QUERY_PARAM_SINCE);
+            sinceVersion = since == null ? -1 : Long.parseLong(since);
+            if (limit != null && Integer.parseInt(limit) <= 0) {
+                throw new IllegalArgumentException("Paged query requires a positive limit " + uri);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid change log parameter " + uri, e);
+        }
+
+        if (projection == null) {
+            projection = CHANGE_COLUMNS;
+        }
+
+        if (sinceVersion >= 0) {
+            //Put the version condition in front of the caller's selection
+            String changeSelection = PetChangeEntry.COLUMN_VERSION + ">?";
+            String[] changeSelectionArgs = new String[] { String.valueOf(sinceVersion) };
+            if (selection != null) {
+                changeSelection = changeSelection + " AND (" + selection + ")";
+                if (selectionArgs != null) {
+                    changeSelectionArgs = new String[selectionArgs.length + 1];
+                    changeSelectionArgs[0] = String.valueOf(sinceVersion);
+                    System.arraycopy(selectionArgs, 0, changeSelectionArgs, 1, selectionArgs.length);
+                }
+            }
+            Cursor cursor = runQuery(database, PetChangeEntry.TABLE_NAME, projection, changeSelection,
+                    changeSelectionArgs, PetChangeEntry.COLUMN_VERSION + " ASC", limit);
+
+            //The floor only goes up. If it is not past since now, after the rows were read,
+            //no change after since had been dropped when they were.
+            if (mDbHelper.getChangeLogFloor(database) <= sinceVersion) {
+                return cursor;
+            }
+            cursor.close();
+        }
+
+        MatrixCursor reset = new MatrixCursor(projection, 1);
+        MatrixCursor.RowBuilder row = reset.newRow();
+        long version = mDbHelper.getChangeVersion(database);
+        for (String column : projection) {
+            if (PetChangeEntry.COLUMN_VERSION.equals(column)) {
+                row.add(version);
+            } else if (PetChangeEntry.COLUMN_PET_ID.equals(column)) {
+                row.add(null);
+            } else if (PetChangeEntry.COLUMN_CHANGE.equals(column)) {
+                row.add(PetChangeEntry.CHANGE_RESET);
+            } else {
+                throw new IllegalArgumentException("Unknown change log column " + column);
+            }
+        }
+        return reset;
+    }
+
+    /**
+     * Returns a {@link PetKeysetCursor} over the pets, see {@link PetEntry#buildBlocksUri()}.
+     * Its queries go through runQuery(), so they are logged when slow and stop once the
+     * caller cancels this query, also when the cursor reads a block later on.
+     */
+    private Cursor queryBlocks(final SQLiteDatabase database, String[] projection, String selection,
+                               String[] selectionArgs, String sortOrder) {
+        if (sortOrder != null && !sortOrder.trim().equalsIgnoreCase(PetEntry._ID)
+                && !sortOrder.trim().equalsIgnoreCase(PetEntry._ID + " ASC")) {
+            throw new IllegalArgumentException("Blocks of pets are ordered by _ID, not " + sortOrder);
+        }
+        if (projection == null) {
+            projection = PET_CACHE_COLUMNS;
+        }
+        //Each block query reads the projection again, only the same rows give the same values
+        for (String column : projection) {
+            if (!Arrays.asList(PET_CACHE_COLUMNS).contains(column)) {
+                throw new IllegalArgumentException("Blocks of pets only have the pet columns, not " + column);
+            }
+        }
+
+        final CancellationSignal cancellationSignal = mQueryCancellation.get();
+        return new PetKeysetCursor(new PetKeysetCursor.BlockQuery() {
+            @Override
+            public Cursor query(String[] columns, String selection, String[] selectionArgs,
+                                String orderBy, String limit) {
+                return runQuery(database, PetEntry.VIEW_NAME, columns, selection, selectionArgs,
+                        orderBy, limit, cancellationSignal);
+            }
+        }, projection, selection, selectionArgs);
+    }
+
+    /**
+     * Search pets by name and breed with the full-text index.
+     * Every word of the search must match the start of a word in the name or the breed.
+     * Unless a sortOrder is given, pets whose name starts with the first word come first.
+     */
+    private Cursor querySearch(SQLiteDatabase database, Uri uri, String[] projection,
+                               String selection, String[] selectionArgs, String sortOrder) {
+
+        String[] words = PetEntry.splitSearchWords(uri.getQueryParameter(PetEntry.QUERY_PARAM_SEARCH));
+
+        //Nothing to search for. Return an empty cursor with the requested columns.
+        if (words.length == 0) {
+            return runQuery(database, PetEntry.VIEW_NAME, projection, "0", null, null, null);
+        }
+
+        //"ter* toto*" matches rows having a word starting with "ter" AND one starting with "toto"
+        StringBuilder matchQuery = new StringBuilder();
+        for (String word : words) {
+            if (matchQuery.length() > 0) {
+                matchQuery.append(' ');
+            }
+            matchQuery.append(word).append('*');
+        }
+
+        //Put the full-text condition in front of the caller's selection
+        String searchSelection = PetEntry._ID + " IN (SELECT docid FROM " + PetEntry.FTS_TABLE_NAME
+                + " WHERE " + PetEntry.FTS_TABLE_NAME + " MATCH ?)";
+        String[] searchSelectionArgs = new String[] { matchQuery.toString() };
+        if (selection != null) {
+            searchSelection = searchSelection + " AND (" + selection + ")";
+            if (selectionArgs != null) {
+                searchSelectionArgs = new String[selectionArgs.length + 1];
+                searchSelectionArgs[0] = matchQuery.toString();
+                System.arraycopy(selectionArgs, 0, searchSelectionArgs, 1, selectionArgs.length);
+            }
+        }
+
+        if (sortOrder == null) {
+            sortOrder = "CASE WHEN " + PetEntry.COLUMN_PET_NAME + " LIKE "
+                    + DatabaseUtils.sqlEscapeString(words[0] + "%") + " THEN 0 ELSE 1 END, "
+                    + PetEntry.COLUMN_PET_NAME;
+        }
+
+        return runQuery(database, PetEntry.VIEW_NAME, projection, searchSelection, searchSelectionArgs,
+                sortOrder, uri.getQueryParameter(PetEntry.QUERY_PARAM_LIMIT));
+    }
 
     /**
      * Insert new data into the provider with the given ContentValues.
@@ -119,11 +863,14 @@ public class PetProvider extends ContentProvider {
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
 
+        long start = System.nanoTime();
         final int match = sUriMatcher.match(uri);
 
         switch (match) {
             case PETS:
-                return insertPet(uri, contentValues);
+                Uri newUri = insertPet(uri, contentValues);
+                mMetrics.record(PetProviderMetrics.INSERT, match, start, newUri == null ? 0 : 1);
+                return newUri;
             default:
                 throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
@@ -136,6 +883,46 @@ public class PetProvider extends ContentProvider {
      */
     private Uri insertPet(Uri uri, ContentValues values) {
 
+        //Sanity check. Same rules are used by bulkInsert()
+        validateNewPet(values);
+
+        //1.Gets the data repository in write mode
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();//データレポジトリ取得。書き込みモード
+
+        //2.Do provider version insert.
+        //In one transaction with the breed lookup, so no truncate can remove the breed in between
+        long id;
+        db.beginTransactionNonExclusive();
+        try {
+            id = db.insert(PetEntry.TABLE_NAME, null, withBreedId(db, values, null));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // If the ID is -1, then the insertion failed. Log an error and return null.
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+
+        //Insert() triggers notification of data change of the new row for all listeners
+        //Observers of the whole table get it too, as it is a descendant of the table uri
+        notifyChange(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id));
+
+        //3.Return the new URI with the ID appended to the end of it.
+        //           New row ID is automatically retrieved.
+        return ContentUris.withAppendedId(uri, id);
+    }
+
+
+    /**
+     * Check that the given values are valid for a new pet.
+     * Throws IllegalArgumentException if any of them is not.
+     * {@link PetCsvImporter} uses it too, to skip the rows the provider would refuse.
+     */
+    static void validateNewPet(ContentValues values) {
+
         //Get name from ContentValues and do sanity check
         String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
         if (name == null) {//null は駄目。空欄はよし。となる。入力しなくてもOK 状態。
@@ -154,29 +941,145 @@ public class PetProvider extends ContentProvider {
         if (weight != null && weight < 0) {
             throw new IllegalArgumentException("Pet requires valid weight");
         }
+    }
 
+    /**
+     * Returns the values to write into the pets table: the same values, with the breed name
+     * replaced by the _ID of the breed, added to the breeds table if it is new.
+     * Call it in the write's transaction.
+     *
+     * @param breedIds breed _IDs already looked up by this write, by name, or null
+     */
+    private static ContentValues withBreedId(SQLiteDatabase db, ContentValues values,
+                                             HashMap<String, Long> breedIds) {
+        if (!values.containsKey(PetEntry.COLUMN_PET_BREED)) {
+            return values;
+        }
 
-        //1.Gets the data repository in write mode
-        SQLiteDatabase db = mDbHelper.getWritableDatabase();//データレポジトリ取得。書き込みモード
+        ContentValues row = new ContentValues(values);
+        String breed = row.getAsString(PetEntry.COLUMN_PET_BREED);
+        row.remove(PetEntry.COLUMN_PET_BREED);
+        if (breed == null) {
+            row.putNull(PetEntry.COLUMN_PET_BREED_ID);
+        } else {
+            row.put(PetEntry.COLUMN_PET_BREED_ID, getBreedId(db, breed, breedIds));
+        }
+        return row;
+    }
 
-        //2.Do provider version insert.
-        long id = db.insert(PetEntry.TABLE_NAME, null, values);
+    private static long getBreedId(SQLiteDatabase db, String breed, HashMap<String, Long> breedIds) {
+        Long breedId = breedIds == null ? null : breedIds.get(breed);
+        if (breedId == null) {
+            breedId = PetDbHelper.getBreedId(db, breed);
+            if (breedIds != null) {
+                breedIds.put(breed, breedId);
+            }
+        }
+        return breedId;
+    }
 
-        // If the ID is -1, then the insertion failed. Log an error and return null.
-        if (id == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+    /**
+     * Returns the selection of a write on the pets table.
+     * Callers select pets with the columns of the contract, breed included,
+     * so the pets are found in the view.
+     */
+    private static String petsWhere(String selection) {
+        if (selection == null) {
             return null;
         }
+        return PetEntry._ID + " IN (SELECT " + PetEntry._ID + " FROM " + PetEntry.VIEW_NAME
+                + " WHERE " + selection + ")";
+    }
+
+    /**
+     * Insert a batch of pets in a single transaction.
+     * The default implementation calls insert() per row, so every row gets its own
+     * transaction and its own change notification.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] valuesArray) {
 
-        //Insert() triggers notification of data change of this uri for this uri for all listeners
-        //$2: notify 対象。nullだと、CursorAdapter がデフォルトで通知を受ける
-        getContext().getContentResolver().notifyChange(uri, null);
+        long start = System.nanoTime();
+        final int match = sUriMatcher.match(uri);
 
-        //3.Return the new URI with the ID appended to the end of it.
-        //           New row ID is automatically retrieved.
-        return ContentUris.withAppendedId(uri, id);
+        switch (match) {
+            case PETS:
+                int rowsInserted = bulkInsertPets(uri, valuesArray);
+                mMetrics.record(PetProviderMetrics.BULK_INSERT, match, start, rowsInserted);
+                return rowsInserted;
+            default:
+                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
     }
 
+    /**
+     * Insert all the given pets with one compiled INSERT statement inside one transaction.
+     * If any row is invalid, nothing is inserted.
+     *
+     * Return the number of inserted rows.
+     */
+    private int bulkInsertPets(Uri uri, ContentValues[] valuesArray) {
+
+        //Validate everything first, so we never open a transaction for a batch we would roll back
+        for (ContentValues values : valuesArray) {
+            validateNewPet(values);
+        }
+
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        //Compile once, then only rebind the arguments for each row
+        SQLiteStatement statement = db.compileStatement(
+                "INSERT INTO " + PetEntry.TABLE_NAME + " ("
+                        + PetEntry.COLUMN_PET_NAME + ", "
+                        + PetEntry.COLUMN_PET_BREED_ID + ", "
+                        + PetEntry.COLUMN_PET_GENDER + ", "
+                        + PetEntry.COLUMN_PET_WEIGHT + ") VALUES (?, ?, ?, ?)");
+
+        //A batch has few breeds for many pets, look each of them up once
+        HashMap<String, Long> breedIds = new HashMap<String, Long>();
+
+        int rowsInserted = 0;
+        db.beginTransactionNonExclusive();
+        try {
+            for (ContentValues values : valuesArray) {
+                statement.clearBindings();
+                statement.bindString(1, values.getAsString(PetEntry.COLUMN_PET_NAME));
+
+                String breed = values.getAsString(PetEntry.COLUMN_PET_BREED);
+                if (breed == null) {
+                    statement.bindNull(2);
+                } else {
+                    statement.bindLong(2, getBreedId(db, breed, breedIds));
+                }
+
+                statement.bindLong(3, values.getAsInteger(PetEntry.COLUMN_PET_GENDER));
+
+                //Same as the column default when weight is missing
+                Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+                statement.bindLong(4, weight == null ? 0 : weight);
+
+                if (statement.executeInsert() == -1) {
+                    Log.e(LOG_TAG, "Failed to insert row for " + uri);
+                } else {
+                    rowsInserted++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            statement.close();
+        }
+
+        if (rowsInserted != 0) {
+            //A batch can be much bigger than the auto-checkpoint size
+            mDbHelper.checkpoint(db);
+
+            //One notification for the whole batch
+            notifyChange(uri);
+        }
+
+        return rowsInserted;
+    }
 
     /**
      * Updates the data at the given selection and selection arguments, with the new ContentValues.
@@ -185,10 +1088,13 @@ public class PetProvider extends ContentProvider {
     //this is ContentProviders update() method, differ from SQLDatabases update() method in its parameters.
     public int update(Uri uri, ContentValues contentValues, String selection,
                       String[] selectionArgs) {
+        long start = System.nanoTime();
         final int match = sUriMatcher.match(uri);
+        int rowsUpdated;
         switch (match) {
             case PETS:
-                return updatePet(uri, contentValues, selection, selectionArgs);
+                rowsUpdated = updatePet(uri, contentValues, selection, selectionArgs);
+                break;
             case PET_ID:
 
                 //row ID was passed from Activity to resolver to Provider.
@@ -196,10 +1102,13 @@ public class PetProvider extends ContentProvider {
 
                 //extracting out the ID with ContentUris.parseId(uri)
                 selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                return updatePet(uri, contentValues, selection, selectionArgs);
+                rowsUpdated = updatePet(uri, contentValues, selection, selectionArgs);
+                break;
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
+        mMetrics.record(PetProviderMetrics.UPDATE, match, start, rowsUpdated);
+        return rowsUpdated;
     }
 
     /**
@@ -246,12 +1155,34 @@ public class PetProvider extends ContentProvider {
 
         //3. do update
         //4. get the number of updated rows
-        //Perform the update on the database and get the number of rows affected
-        int rowsUpdated = db.update(PetEntry.TABLE_NAME, values, selection, selectionArgs);
+        //Perform the update on the database and get the number of rows affected.
+        //In a transaction, so the rows found for the notification are the rows updated.
+        int rowsUpdated;
+        long[] changedIds;
+        long[] cachedIds = null;
+        db.beginTransactionNonExclusive();
+        try {
+            changedIds = findChangedPets(db, selection, selectionArgs);
+            cachedIds = beginPetWrite(db, selection, selectionArgs);
+            //The pets may leave their breeds unused
+            long[] breedIds = values.containsKey(PetEntry.COLUMN_PET_BREED)
+                    ? PetDbHelper.findBreedIds(db, petsWhere(selection), selectionArgs) : null;
+            rowsUpdated = db.update(PetEntry.TABLE_NAME, withBreedId(db, values, null),
+                    petsWhere(selection), selectionArgs);
+            if (breedIds != null) {
+                PetDbHelper.deleteUnusedBreeds(db, breedIds);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            if (cachedIds != null) {
+                endPetWrite(cachedIds);
+            }
+        }
 
         if(rowsUpdated != 0){
-            //Notify all listeners that the data at the given uri has changed
-            getContext().getContentResolver().notifyChange(uri, null);
+            //Notify all listeners that the updated pets have changed
+            notifyPetsChanged(changedIds);
         }
 
         return rowsUpdated;
@@ -263,40 +1194,373 @@ public class PetProvider extends ContentProvider {
     @Override
     //Returns the number of deleted rows.
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        long start = System.nanoTime();
+
         // Get writable database
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
         final int match = sUriMatcher.match(uri);
-
-        //Track the number of rows that were deleted
         int rowsDeleted;
 
         switch (match) {
             case PETS:
-                // Delete all rows that match the selection and selection args
-                rowsDeleted = database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
-
-                if(rowsDeleted != 0){
-                    //Notify all listeners that the data at the given uri has changed
-                    getContext().getContentResolver().notifyChange(uri, null);
+                if (selection == null) {
+                    // Delete all rows, without going through them
+                    rowsDeleted = truncatePets(database);
+                    break;
                 }
-
-                return rowsDeleted;
+                // Delete all rows that match the selection and selection args
+                rowsDeleted = deletePets(database, selection, selectionArgs);
+                break;
             case PET_ID:
                 // Delete a single row given by the ID in the URI
                 selection = PetEntry._ID + "=?";
                 selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
 
-                rowsDeleted = database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+                rowsDeleted = deletePets(database, selection, selectionArgs);
+                break;
+            default:
+                throw new IllegalArgumentException("Deletion is not supported for " + uri);
+        }
+        mMetrics.record(PetProviderMetrics.DELETE, match, start, rowsDeleted);
+        return rowsDeleted;
+    }
+
+    /**
+     * Delete the pets matching the selection, evict them from the cache and notify observers.
+     * Return the number of deleted rows.
+     */
+    private int deletePets(SQLiteDatabase database, String selection, String[] selectionArgs) {
+
+        //In a transaction, so the rows found for the notification are the rows deleted
+        int rowsDeleted;
+        long[] changedIds;
+        long[] cachedIds = null;
+        database.beginTransactionNonExclusive();
+        try {
+            changedIds = findChangedPets(database, selection, selectionArgs);
+            cachedIds = beginPetWrite(database, selection, selectionArgs);
+            long[] breedIds = PetDbHelper.findBreedIds(database, petsWhere(selection), selectionArgs);
+            rowsDeleted = database.delete(PetEntry.TABLE_NAME, petsWhere(selection), selectionArgs);
+            PetDbHelper.deleteUnusedBreeds(database, breedIds);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            if (cachedIds != null) {
+                endPetWrite(cachedIds);
+            }
+        }
+
+        if(rowsDeleted != 0){
+            //Notify all listeners that the deleted pets have changed
+            notifyPetsChanged(changedIds);
+        }
+
+        return rowsDeleted;
+    }
+
+    /**
+     * Delete all the pets by swapping in an empty table. The transaction only renames and
+     * creates tables, so it takes the same short time for any number of pets.
+     * The old table is dropped later on the maintenance thread.
+     * Return the number of deleted rows.
+     */
+    private int truncatePets(SQLiteDatabase database) {
+
+        int rowsDeleted;
+        long[] cachedIds = null;
+        database.beginTransactionNonExclusive();
+        try {
+            cachedIds = beginPetWrite(database, null, null);
+            rowsDeleted = mDbHelper.truncatePets(database);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            if (cachedIds != null) {
+                endPetWrite(cachedIds);
+            }
+        }
+
+        //Inside applyBatch() the reclaim waits for the batch to commit, as it needs the
+        //write connection. If the batch rolls back, there is no trash to reclaim.
+        scheduleReclaim();
+
+        if (rowsDeleted != 0) {
+            notifyPetsChanged(null);
+        }
+        return rowsDeleted;
+    }
+
+    /**
+     * Drop the trash of truncated tables on the maintenance thread.
+     */
+    private void scheduleReclaim() {
+        try {
+            mMaintenanceExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mDbHelper.reclaimTrash(mDbHelper.getWritableDatabase());
+                    } catch (RuntimeException e) {
+                        //Tried again after the next truncate or start
+                        Log.e(LOG_TAG, "Failed to reclaim truncated pets", e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //Shut down
+        }
+    }
+
+    /**
+     * Wait for the maintenance tasks scheduled so far, such as a reclaim, to finish.
+     * For tests, which check the database after them.
+     */
+    void awaitMaintenance() throws InterruptedException, ExecutionException {
+        mMaintenanceExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+    }
+
+    /**
+     * Returns the _IDs of the pets an update or delete with this selection is going to change,
+     * or null if there are more than {@link #MAX_ROW_NOTIFICATIONS} of them.
+     * Call it in the write's transaction.
+     */
+    private long[] findChangedPets(SQLiteDatabase db, String selection, String[] selectionArgs) {
+
+        //The whole table
+        if (selection == null) {
+            return null;
+        }
 
-                if(rowsDeleted != 0){
-                    //Notify all listeners that the data at the given uri has changed
+        Cursor cursor = db.query(PetEntry.VIEW_NAME, new String[] { PetEntry._ID },
+                selection, selectionArgs, null, null, null,
+                String.valueOf(MAX_ROW_NOTIFICATIONS + 1));
+        try {
+            if (cursor.getCount() > MAX_ROW_NOTIFICATIONS) {
+                return null;
+            }
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Notify the URI of each changed pet, or the table URI when changedIds is null.
+     * Observers of the table URI are notified either way.
+     */
+    private void notifyPetsChanged(long[] changedIds) {
+        if (changedIds == null) {
+            notifyChange(PetEntry.CONTENT_URI);
+            return;
+        }
+        for (long id : changedIds) {
+            notifyChange(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id));
+        }
+    }
+
+    /**
+     * Apply all the operations in one transaction.
+     * Change notifications are held back and sent once per affected URI after the batch ends,
+     * so observers like CursorLoader requery once instead of once per operation.
+     *
+     * Operations built with {@link ContentProviderOperation.Builder#withYieldAllowed(boolean)}
+     * mark points where the transaction may be committed and the lock handed to other threads
+     * during long batches. Work before a yield point stays committed even if a later operation fails,
+     * and only that work is notified then.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        Batch batch = new Batch();
+        mBatch.set(batch);
+
+        boolean successful = false;
+        db.beginTransactionNonExclusive();
+        try {
+            final int numOperations = operations.size();
+            ContentProviderResult[] results = new ContentProviderResult[numOperations];
+            for (int i = 0; i < numOperations; i++) {
+                ContentProviderOperation operation = operations.get(i);
+
+                //Let other threads in between operations the caller marked as safe to split
+                if (i > 0 && operation.isYieldAllowed() && db.yieldIfContendedSafely()) {
+                    //The operations so far were committed, their changes are notified whatever comes next
+                    batch.commitNotifications();
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+            return results;
+        } finally {
+            db.endTransaction();
+            mBatch.remove();
+
+            //Readers can now only see the data after the batch
+            for (long[] ids : batch.petWrites) {
+                endPetWrite(ids);
+            }
+
+            //Notify only what was really committed.
+            //Too many rows changed: one notification for the table instead.
+            if (successful) {
+                batch.commitNotifications();
+            }
+            Set<Uri> committed = batch.committedNotifications;
+            if (committed.size() > MAX_ROW_NOTIFICATIONS) {
+                getContext().getContentResolver().notifyChange(PetEntry.CONTENT_URI, null);
+            } else {
+                for (Uri uri : committed) {
                     getContext().getContentResolver().notifyChange(uri, null);
                 }
+            }
+        }
+    }
 
-                return rowsDeleted;
-            default:
-                throw new IllegalArgumentException("Deletion is not supported for " + uri);
+    /**
+     * Notify all listeners that the data at the given uri has changed.
+     * Inside applyBatch() the notification is deferred until the batch ends.
+     */
+    private void notifyChange(Uri uri) {
+        Batch batch = mBatch.get();
+        if (batch != null) {
+            batch.notifications.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Export all the pets as CSV.
+     * The returned descriptor is the read end of a pipe, the pets are written into it
+     * on a worker thread while the caller reads.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != EXPORT) {
+            throw new FileNotFoundException("No file at " + uri);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Export can only be read " + uri);
+        }
+        return mExporter.openPipe(uri, EXPORT_MIME_TYPES[0], null);
+    }
+
+    /**
+     * Returns the export formats matching the filter, or null.
+     */
+    @Override
+    public String[] getStreamTypes(Uri uri, String mimeTypeFilter) {
+        if (sUriMatcher.match(uri) != EXPORT) {
+            return null;
+        }
+        ArrayList<String> types = new ArrayList<String>();
+        for (String type : EXPORT_MIME_TYPES) {
+            if (ClipDescription.compareMimeTypes(type, mimeTypeFilter)) {
+                types.add(type);
+            }
+        }
+        return types.isEmpty() ? null : types.toArray(new String[types.size()]);
+    }
+
+    /**
+     * Export all the pets in the first format matching the filter, see {@link #openFile(Uri, String)}.
+     */
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts)
+            throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != EXPORT) {
+            return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+        }
+        String[] types = getStreamTypes(uri, mimeTypeFilter);
+        if (types == null) {
+            throw new FileNotFoundException("Can't export pets as " + mimeTypeFilter);
+        }
+        PetExporter.checkOptions(opts);
+        ParcelFileDescriptor pipe = mExporter.openPipe(uri, types[0], opts);
+        return new AssetFileDescriptor(pipe, 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+    }
+
+    /**
+     * Returns counters of the single pet cache, the metrics or the slow queries of the provider
+     * in a Bundle, sets the slow query threshold, or exports pets in the packed format.
+     * Method names and keys are defined in {@link PetContract}.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (PetContract.METHOD_GET_PET_CACHE_STATS.equals(method)) {
+            Bundle stats = new Bundle();
+            stats.putInt(PetContract.KEY_CACHE_HITS, mPetCache.hitCount());
+            stats.putInt(PetContract.KEY_CACHE_MISSES, mPetCache.missCount());
+            stats.putInt(PetContract.KEY_CACHE_SIZE, mPetCache.size());
+            return stats;
+        }
+        if (PetContract.METHOD_GET_METRICS.equals(method)) {
+            return mMetrics.snapshot();
+        }
+        if (PetContract.METHOD_GET_SLOW_QUERIES.equals(method)) {
+            return mSlowQueryLog.snapshot();
+        }
+        if (PetContract.METHOD_SET_SLOW_QUERY_THRESHOLD.equals(method)) {
+            try {
+                mSlowQueryLog.setThresholdMillis(Long.parseLong(arg));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid slow query threshold " + arg, e);
+            }
+            return null;
+        }
+        if (PetContract.METHOD_EXPORT_PACKED.equals(method)) {
+            PetExporter.checkOptions(extras);
+            Bundle result = new Bundle();
+            try {
+                result.putParcelable(PetContract.KEY_EXPORT_PIPE, mExporter.openPipe(
+                        PetEntry.CONTENT_EXPORT_URI, PetEntry.MIME_TYPE_PACKED, extras));
+            } catch (FileNotFoundException e) {
+                //No pipe could be made, out of file descriptors
+                throw new IllegalStateException("Failed to open the export pipe", e);
+            }
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Print the slow queries, for "adb shell dumpsys activity provider PetProvider".
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mSlowQueryLog.dump(writer);
+    }
+
+    /**
+     * Work held back by applyBatch() until its transaction ends.
+     */
+    private static class Batch {
+
+        //URIs to notify once each, of the operations since the last commit
+        final Set<Uri> notifications = new HashSet<Uri>();
+
+        //URIs to notify of the operations already committed, at a yield or at the end
+        final Set<Uri> committedNotifications = new HashSet<Uri>();
+
+        //Cached pets to evict, one entry per write
+        final ArrayList<long[]> petWrites = new ArrayList<long[]>();
+
+        void commitNotifications() {
+            committedNotifications.addAll(notifications);
+            notifications.clear();
         }
     }
 
@@ -311,6 +1575,17 @@ public class PetProvider extends ContentProvider {
                 return PetEntry.CONTENT_LIST_TYPE;
             case PET_ID:
                 return PetEntry.CONTENT_ITEM_TYPE;
+            case SEARCH:
+            case FILTER_GENDER:
+            case FILTER_WEIGHT:
+                return PetEntry.CONTENT_LIST_TYPE;
+            case STATS_GENDER:
+            case STATS_BREED:
+                return PetStatsEntry.CONTENT_LIST_TYPE;
+            case CHANGES:
+                return PetChangeEntry.CONTENT_LIST_TYPE;
+            case EXPORT:
+                return EXPORT_MIME_TYPES[0];
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
@@ -0,0 +1,153 @@
+package com.example.android.pets.data;
+
+import android.os.Bundle;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link PetProviderMetrics} counts the calls of {@link PetProvider} and how long they take,
+ * for each operation and each kind of URI.
+ * Recording is a few atomic increments, without locks or allocations,
+ * so it can stay on in production.
+ *
+ * Latencies go into a histogram with 4 buckets per power of two of microseconds.
+ * A percentile is reported as the upper end of its bucket, at most 25% above the real value.
+ */
+class PetProviderMetrics {
+
+    static final int QUERY = 0;
+    static final int INSERT = 1;
+    static final int BULK_INSERT = 2;
+    static final int UPDATE = 3;
+    static final int DELETE = 4;
+
+    // Names of the operations above, in the keys of the snapshot
+    private static final String[] OPERATION_NAMES = { "query", "insert", "bulk_insert", "update", "delete" };
+
+    // Covers latencies up to 2^33 microseconds, over two hours. Slower calls go in the last bucket.
+    private static final int BUCKET_COUNT = 128;
+
+    // Counters of each operation on each kind of URI
+    private final Counters[][] mCounters;
+
+    private final int mFirstMatchCode;
+    private final String[] mUriNames;
+
+    /**
+     * @param firstMatchCode UriMatcher code of the first kind of URI
+     * @param uriNames       names of the kinds of URI, in the order of their UriMatcher codes
+     */
+    PetProviderMetrics(int firstMatchCode, String[] uriNames) {
+        mFirstMatchCode = firstMatchCode;
+        mUriNames = uriNames;
+        mCounters = new Counters[OPERATION_NAMES.length][uriNames.length];
+        for (Counters[] operationCounters : mCounters) {
+            for (int i = 0; i < operationCounters.length; i++) {
+                operationCounters[i] = new Counters();
+            }
+        }
+    }
+
+    /**
+     * Record one call that started at startNanos (from System.nanoTime()) and ends now.
+     *
+     * @param operation one of the operation constants
+     * @param match     UriMatcher code of the URI
+     * @param rows      rows returned or changed by the call
+     */
+    void record(int operation, int match, long startNanos, int rows) {
+        int uriIndex = match - mFirstMatchCode;
+        if (uriIndex < 0 || uriIndex >= mUriNames.length) {
+            return;
+        }
+        long micros = (System.nanoTime() - startNanos) / 1000;
+
+        Counters counters = mCounters[operation][uriIndex];
+        counters.calls.incrementAndGet();
+        counters.rows.addAndGet(rows);
+        counters.totalMicros.addAndGet(micros);
+        counters.histogram.incrementAndGet(bucketOf(micros));
+    }
+
+    /**
+     * Returns one Bundle per operation and kind of URI that was called at least once,
+     * under keys like "query:pet_id". Keys inside them are defined in {@link PetContract}.
+     */
+    Bundle snapshot() {
+        Bundle snapshot = new Bundle();
+        for (int operation = 0; operation < mCounters.length; operation++) {
+            for (int uriIndex = 0; uriIndex < mUriNames.length; uriIndex++) {
+                Counters counters = mCounters[operation][uriIndex];
+                long calls = counters.calls.get();
+                if (calls == 0) {
+                    continue;
+                }
+
+                //Copy the histogram first, so the percentiles are from one consistent set of calls
+                long[] histogram = new long[BUCKET_COUNT];
+                long histogramCalls = 0;
+                for (int i = 0; i < BUCKET_COUNT; i++) {
+                    histogram[i] = counters.histogram.get(i);
+                    histogramCalls += histogram[i];
+                }
+
+                Bundle metrics = new Bundle();
+                metrics.putLong(PetContract.KEY_METRIC_CALLS, calls);
+                metrics.putLong(PetContract.KEY_METRIC_ROWS, counters.rows.get());
+                metrics.putLong(PetContract.KEY_METRIC_TOTAL_MICROS, counters.totalMicros.get());
+                metrics.putLong(PetContract.KEY_METRIC_P50_MICROS, percentile(histogram, histogramCalls, 50));
+                metrics.putLong(PetContract.KEY_METRIC_P90_MICROS, percentile(histogram, histogramCalls, 90));
+                metrics.putLong(PetContract.KEY_METRIC_P99_MICROS, percentile(histogram, histogramCalls, 99));
+                snapshot.putBundle(OPERATION_NAMES[operation] + ":" + mUriNames[uriIndex], metrics);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns the latency under which the given percent of the calls finished,
+     * as the upper end of its bucket.
+     */
+    private static long percentile(long[] histogram, long calls, int percent) {
+        long rank = (calls * percent + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= rank && seen > 0) {
+                return bucketUpperBound(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Buckets 0 to 3 hold exactly 0 to 3 microseconds. Above that, each power of two
+     * is split in 4 buckets of the same width.
+     */
+    static int bucketOf(long micros) {
+        if (micros < 4) {
+            return (int) Math.max(0, micros);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >> (exponent - 2)) & 3;
+        return Math.min(BUCKET_COUNT - 1, (exponent - 1) * 4 + sub);
+    }
+
+    static long bucketUpperBound(int bucket) {
+        if (bucket < 4) {
+            return bucket;
+        }
+        int exponent = bucket / 4 + 1;
+        int sub = bucket % 4;
+        long lower = (long) (4 + sub) << (exponent - 2);
+        return lower + (1L << (exponent - 2)) - 1;
+    }
+
+    private static class Counters {
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong totalMicros = new AtomicLong();
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKET_COUNT);
+    }
+}
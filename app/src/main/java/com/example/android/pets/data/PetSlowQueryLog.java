@@ -0,0 +1,188 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link PetSlowQueryLog} keeps the last queries of {@link PetProvider} that took longer
+ * than a threshold, with the plan SQLite chose for them (EXPLAIN QUERY PLAN).
+ * A plan with "SCAN TABLE" or "USE TEMP B-TREE" tells which index is missing.
+ *
+ * The plan is asked for on a worker thread, so a slow query doesn't get slower.
+ * Only the shape of the arguments is kept, not their values.
+ */
+class PetSlowQueryLog {
+
+    private static final String LOG_TAG = PetSlowQueryLog.class.getSimpleName();
+
+    static final long DEFAULT_THRESHOLD_MILLIS = 50;
+
+    // Slow queries kept. Older ones are dropped.
+    private static final int CAPACITY = 32;
+
+    private final PetDbHelper mDbHelper;
+
+    private final ExecutorService mExplainExecutor = Executors.newSingleThreadExecutor();
+
+    private volatile long mThresholdNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_THRESHOLD_MILLIS);
+
+    // Oldest first, guarded by itself
+    private final ArrayDeque<Bundle> mEntries = new ArrayDeque<Bundle>(CAPACITY);
+
+    PetSlowQueryLog(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    boolean isSlow(long nanos) {
+        return nanos >= mThresholdNanos;
+    }
+
+    void setThresholdMillis(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Slow query threshold can't be negative " + millis);
+        }
+        mThresholdNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    long getThresholdMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mThresholdNanos);
+    }
+
+    /**
+     * Log a slow query. Returns right away, the plan is added on a worker thread.
+     */
+    void record(final String sql, String[] selectionArgs, long nanos) {
+        final Bundle entry = new Bundle();
+        entry.putString(PetContract.KEY_SLOW_QUERY_SQL, sql);
+        entry.putString(PetContract.KEY_SLOW_QUERY_ARGS, shapeOf(selectionArgs));
+        entry.putLong(PetContract.KEY_SLOW_QUERY_MILLIS, TimeUnit.NANOSECONDS.toMillis(nanos));
+        entry.putLong(PetContract.KEY_SLOW_QUERY_TIME, System.currentTimeMillis());
+
+        //Bound to the same arguments, so SQLite plans it the same way
+        final String[] args = selectionArgs == null ? null : selectionArgs.clone();
+        try {
+            mExplainExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    entry.putString(PetContract.KEY_SLOW_QUERY_PLAN, explain(sql, args));
+                    Log.w(LOG_TAG, format(entry));
+                    synchronized (mEntries) {
+                        if (mEntries.size() == CAPACITY) {
+                            mEntries.removeFirst();
+                        }
+                        mEntries.addLast(entry);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //Shut down
+        }
+    }
+
+    private String explain(String sql, String[] args) {
+        StringBuilder plan = new StringBuilder();
+        try {
+            Cursor cursor = mDbHelper.getReadableDatabase().rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+            try {
+                int detailColumnIndex = cursor.getColumnIndexOrThrow("detail");
+                while (cursor.moveToNext()) {
+                    if (plan.length() > 0) {
+                        plan.append('\n');
+                    }
+                    plan.append(cursor.getString(detailColumnIndex));
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (RuntimeException e) {
+            plan.append("No plan: ").append(e.getMessage());
+        }
+        return plan.toString();
+    }
+
+    /**
+     * Describe the arguments without their values, like "[number, text(5), null]".
+     */
+    static String shapeOf(String[] args) {
+        if (args == null) {
+            return "[]";
+        }
+        StringBuilder shape = new StringBuilder("[");
+        for (int i = 0; i < args.length; i++) {
+            if (i > 0) {
+                shape.append(", ");
+            }
+            String arg = args[i];
+            if (arg == null) {
+                shape.append("null");
+            } else if (isNumber(arg)) {
+                shape.append("number");
+            } else {
+                shape.append("text(").append(arg.length()).append(')');
+            }
+        }
+        return shape.append(']').toString();
+    }
+
+    private static boolean isNumber(String arg) {
+        try {
+            Double.parseDouble(arg);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the slow queries, oldest first, under {@link PetContract#KEY_SLOW_QUERIES}.
+     */
+    Bundle snapshot() {
+        ArrayList<Bundle> entries;
+        synchronized (mEntries) {
+            entries = new ArrayList<Bundle>(mEntries);
+        }
+        Bundle snapshot = new Bundle();
+        snapshot.putLong(PetContract.KEY_SLOW_QUERY_THRESHOLD_MILLIS, getThresholdMillis());
+        snapshot.putParcelableArrayList(PetContract.KEY_SLOW_QUERIES, entries);
+        return snapshot;
+    }
+
+    /**
+     * Print the slow queries, for dumpsys.
+     */
+    void dump(PrintWriter writer) {
+        ArrayList<Bundle> entries;
+        synchronized (mEntries) {
+            entries = new ArrayList<Bundle>(mEntries);
+        }
+        writer.println("Slow queries (over " + getThresholdMillis() + " ms, last " + CAPACITY + "):");
+        for (Bundle entry : entries) {
+            writer.println(format(entry));
+        }
+    }
+
+    private static String format(Bundle entry) {
+        SimpleDateFormat timeFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        return timeFormat.format(new Date(entry.getLong(PetContract.KEY_SLOW_QUERY_TIME)))
+                + " " + entry.getLong(PetContract.KEY_SLOW_QUERY_MILLIS) + " ms: "
+                + entry.getString(PetContract.KEY_SLOW_QUERY_SQL)
+                + " args " + entry.getString(PetContract.KEY_SLOW_QUERY_ARGS)
+                + "\n  " + entry.getString(PetContract.KEY_SLOW_QUERY_PLAN, "").replace("\n", "\n  ");
+    }
+
+    void shutdown() {
+        mExplainExecutor.shutdownNow();
+    }
+}
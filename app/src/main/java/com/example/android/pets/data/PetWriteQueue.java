@@ -0,0 +1,190 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link PetWriteQueue} runs the pet writes of the UI on a background thread,
+ * so a save never waits for the database on the main thread.
+ *
+ * Writes queued within a few milliseconds of each other are applied together
+ * with one applyBatch(), in one transaction. They are applied in the order they were queued.
+ * The result of each write is posted back to the main thread.
+ */
+public class PetWriteQueue {
+
+    private static final String LOG_TAG = PetWriteQueue.class.getSimpleName();
+
+    // How long the first write of a batch waits for others to join it
+    private static final long COALESCE_DELAY_MILLIS = 10;
+
+    // Most writes applied in one transaction
+    private static final int MAX_BATCH_SIZE = 100;
+
+    /**
+     * Told about the result of a write, on the main thread.
+     */
+    public interface Callback {
+
+        /**
+         * @param result the new pet's URI for an insert, the number of changed pets for an
+         *               update or a delete, or null if the write failed
+         */
+        void onWriteFinished(ContentProviderResult result);
+    }
+
+    private static PetWriteQueue sInstance;
+
+    private final ContentResolver mResolver;
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Writes waiting for the next batch, guarded by itself
+    private final ArrayList<Write> mPending = new ArrayList<Write>();
+    private boolean mBatchScheduled;
+
+    /**
+     * Returns the queue of the app. One queue keeps all the writes in order.
+     */
+    public static synchronized PetWriteQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetWriteQueue(context.getApplicationContext().getContentResolver());
+        }
+        return sInstance;
+    }
+
+    private PetWriteQueue(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Insert a new pet.
+     */
+    public void insert(ContentValues values, Callback callback) {
+        enqueue(ContentProviderOperation.newInsert(PetEntry.CONTENT_URI).withValues(values).build(),
+                callback);
+    }
+
+    /**
+     * Update the pets at the given URI.
+     */
+    public void update(Uri uri, ContentValues values, Callback callback) {
+        enqueue(ContentProviderOperation.newUpdate(uri).withValues(values).build(), callback);
+    }
+
+    /**
+     * Delete the pets at the given URI, all of them for {@link PetEntry#CONTENT_URI}.
+     */
+    public void delete(Uri uri, Callback callback) {
+        enqueue(ContentProviderOperation.newDelete(uri).build(), callback);
+    }
+
+    private void enqueue(ContentProviderOperation operation, Callback callback) {
+        synchronized (mPending) {
+            mPending.add(new Write(operation, callback));
+            if (!mBatchScheduled) {
+                mBatchScheduled = true;
+                mExecutor.schedule(mApplyPending, COALESCE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Runs on the queue's thread. Applies everything queued so far.
+     */
+    private final Runnable mApplyPending = new Runnable() {
+        @Override
+        public void run() {
+            ArrayList<Write> writes;
+            synchronized (mPending) {
+                writes = new ArrayList<Write>(mPending);
+                mPending.clear();
+                mBatchScheduled = false;
+            }
+            for (int start = 0; start < writes.size(); start += MAX_BATCH_SIZE) {
+                apply(writes.subList(start, Math.min(writes.size(), start + MAX_BATCH_SIZE)));
+            }
+        }
+    };
+
+    /**
+     * Apply the writes in one transaction. If it fails, apply them one at a time,
+     * so one bad write doesn't fail the others.
+     */
+    private void apply(List<Write> writes) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(writes.size());
+        for (Write write : writes) {
+            operations.add(write.operation);
+        }
+
+        ContentProviderResult[] results;
+        try {
+            results = mResolver.applyBatch(PetContract.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException e) {
+            failed(writes, e);
+            return;
+        } catch (OperationApplicationException e) {
+            failed(writes, e);
+            return;
+        } catch (RuntimeException e) {
+            //The provider refused a write, IllegalArgumentException for an invalid pet
+            failed(writes, e);
+            return;
+        }
+
+        for (int i = 0; i < writes.size(); i++) {
+            deliver(writes.get(i), results[i]);
+        }
+    }
+
+    private void failed(List<Write> writes, Exception e) {
+        if (writes.size() > 1) {
+            for (Write write : writes) {
+                apply(Collections.singletonList(write));
+            }
+            return;
+        }
+        Log.e(LOG_TAG, "Failed to apply " + writes.get(0).operation, e);
+        deliver(writes.get(0), null);
+    }
+
+    private void deliver(final Write write, final ContentProviderResult result) {
+        if (write.callback == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                write.callback.onWriteFinished(result);
+            }
+        });
+    }
+
+    private static class Write {
+        final ContentProviderOperation operation;
+        final Callback callback;
+
+        Write(ContentProviderOperation operation, Callback callback) {
+            this.operation = operation;
+            this.callback = callback;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests of {@link PetColumnStore} following a {@link PetProvider} through its change log.
+ * After each change the store's scans are checked against the pets the provider returns.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 21)
+public class PetColumnStoreTest {
+
+    private static final String[] BREEDS = { "Terrier", "Poodle", null };
+
+    private PetProvider mProvider;
+    private PetColumnStore mStore;
+
+    @Before
+    public void setUp() {
+        RuntimeEnvironment.application.deleteDatabase(PetDbHelper.DATABASE_NAME);
+        mProvider = new PetProvider();
+        mProvider.attachInfo(RuntimeEnvironment.application, null);
+        ShadowContentResolver.registerProvider(PetContract.CONTENT_AUTHORITY, mProvider);
+        mStore = new PetColumnStore(RuntimeEnvironment.application.getContentResolver());
+    }
+
+    @After
+    public void tearDown() {
+        mProvider.shutdown();
+        RuntimeEnvironment.application.deleteDatabase(PetDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void applyChanges_followsSinglePetChanges() {
+        insertPets(10);
+        mStore.load();
+        assertMatchesProvider();
+
+        long id = insertPet("Luna", "Beagle", PetEntry.GENDER_FEMALE, 30);
+        mStore.applyChanges();
+        assertMatchesProvider();
+
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 4);
+        values.putNull(PetEntry.COLUMN_PET_BREED);
+        assertEquals(1, mProvider.update(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id),
+                values, null, null));
+        mStore.applyChanges();
+        assertMatchesProvider();
+
+        assertEquals(1, mProvider.delete(ContentUris.withAppendedId(PetEntry.CONTENT_URI, 3), null, null));
+        mStore.applyChanges();
+        assertMatchesProvider();
+
+        //Several changes to apply at once, one of them to a pet inserted and deleted since
+        long gone = insertPet("Gone", "Poodle", PetEntry.GENDER_UNKNOWN, 2);
+        insertPet("Max", "Poodle", PetEntry.GENDER_MALE, 12);
+        mProvider.delete(ContentUris.withAppendedId(PetEntry.CONTENT_URI, gone), null, null);
+        mProvider.delete(ContentUris.withAppendedId(PetEntry.CONTENT_URI, 5), null, null);
+        mStore.applyChanges();
+        assertMatchesProvider();
+    }
+
+    @Test
+    public void applyChanges_loadsAgainAfterTruncate() throws Exception {
+        insertPets(10);
+        mStore.load();
+
+        //The change log answers a reset, the store loads the empty table again
+        assertEquals(10, mProvider.delete(PetEntry.CONTENT_URI, null, null));
+        mProvider.awaitMaintenance();
+        mStore.applyChanges();
+        assertEquals(0, mStore.size());
+        assertMatchesProvider();
+
+        insertPets(4);
+        mStore.applyChanges();
+        assertEquals(4, mStore.size());
+        assertMatchesProvider();
+    }
+
+    @Test
+    public void applyChanges_compactsDeletedPets() {
+        List<Long> ids = insertPets(40);
+        mStore.load();
+
+        //More than a quarter of the rows deleted, one refresh each
+        for (int i = 0; i < 15; i++) {
+            long id = ids.get(i * 2 + 1);
+            mProvider.delete(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id), null, null);
+            mStore.applyChanges();
+            assertMatchesProvider();
+        }
+
+        //Rows after the compaction are still found, updated and deleted
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 50);
+        mProvider.update(ContentUris.withAppendedId(PetEntry.CONTENT_URI, ids.get(38)), values, null, null);
+        mProvider.delete(ContentUris.withAppendedId(PetEntry.CONTENT_URI, ids.get(39)), null, null);
+        insertPet("Late", "Terrier", PetEntry.GENDER_FEMALE, 7);
+        mStore.applyChanges();
+        assertEquals(40 - 15 - 1 + 1, mStore.size());
+        assertMatchesProvider();
+    }
+
+    /**
+     * Check the store's scans against the pets read from the provider.
+     */
+    private void assertMatchesProvider() {
+        List<Long> ids = new ArrayList<Long>();
+        List<Long> lightMales = new ArrayList<Long>();
+        int[] genderCounts = new int[3];
+        Map<String, Integer> breedCounts = new HashMap<String, Integer>();
+        Cursor cursor = mProvider.query(PetEntry.CONTENT_URI, new String[] { PetEntry._ID,
+                PetEntry.COLUMN_PET_GENDER, PetEntry.COLUMN_PET_WEIGHT, PetEntry.COLUMN_PET_BREED },
+                null, null, PetEntry._ID);
+        try {
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                int gender = cursor.getInt(1);
+                ids.add(id);
+                genderCounts[gender]++;
+                if (gender == PetEntry.GENDER_MALE && cursor.getInt(2) <= 10) {
+                    lightMales.add(id);
+                }
+                String breed = cursor.getString(3);
+                if (breed != null) {
+                    Integer count = breedCounts.get(breed);
+                    breedCounts.put(breed, count == null ? 1 : count + 1);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        assertEquals(ids.size(), mStore.size());
+        assertEquals(ids.size(), mStore.count(PetColumnStore.ALL));
+        PetColumnStore.Filter lightMale = PetColumnStore.where(PetEntry.GENDER_MALE, 0, 10);
+        assertEquals(lightMales.size(), mStore.count(lightMale));
+
+        int[] storeGenderCounts = new int[3];
+        assertEquals(ids.size(), mStore.countByGender(PetColumnStore.ALL, storeGenderCounts));
+        assertArrayEquals(genderCounts, storeGenderCounts);
+
+        //Codes of breeds no pet has anymore count 0
+        int[] storeBreedCounts = new int[mStore.getBreedCount()];
+        mStore.countByBreed(PetColumnStore.ALL, storeBreedCounts);
+        Map<String, Integer> storeBreeds = new HashMap<String, Integer>();
+        for (int breed = 0; breed < storeBreedCounts.length; breed++) {
+            if (storeBreedCounts[breed] > 0) {
+                storeBreeds.put(mStore.getBreedName(breed), storeBreedCounts[breed]);
+            }
+        }
+        assertEquals(breedCounts, storeBreeds);
+
+        assertEquals(ids, selectIds(PetColumnStore.ALL, ids.size()));
+        assertEquals(lightMales, selectIds(lightMale, lightMales.size()));
+    }
+
+    private List<Long> selectIds(PetColumnStore.Filter filter, int expectedCount) {
+        long[] ids = new long[expectedCount];
+        assertEquals(expectedCount, mStore.selectIds(filter, ids));
+        List<Long> list = new ArrayList<Long>();
+        for (long id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+
+    private List<Long> insertPets(int count) {
+        List<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < count; i++) {
+            ids.add(insertPet("Pet " + i, BREEDS[i % BREEDS.length], i % 3, i % 25));
+        }
+        return ids;
+    }
+
+    private long insertPet(String name, String breed, int gender, int weight) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, name);
+        values.put(PetEntry.COLUMN_PET_BREED, breed);
+        values.put(PetEntry.COLUMN_PET_GENDER, gender);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+        return Long.parseLong(mProvider.insert(PetEntry.CONTENT_URI, values).getLastPathSegment());
+    }
+}
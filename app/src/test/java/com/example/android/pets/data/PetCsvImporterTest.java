@@ -0,0 +1,92 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests of {@link PetCsvImporter} into a {@link PetProvider} on Robolectric's SQLite.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 21)
+public class PetCsvImporterTest {
+
+    private PetProvider mProvider;
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        RuntimeEnvironment.application.deleteDatabase(PetDbHelper.DATABASE_NAME);
+        mProvider = new PetProvider();
+        mProvider.attachInfo(RuntimeEnvironment.application, null);
+        ShadowContentResolver.registerProvider(PetContract.CONTENT_AUTHORITY, mProvider);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @After
+    public void tearDown() {
+        mProvider.shutdown();
+        RuntimeEnvironment.application.deleteDatabase(PetDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void importPets_countsImportedAndSkipped() throws IOException {
+        PetCsvImporter.Result result = importCsv(2, "_id,name,breed,gender,weight\r\n"
+                + "7,Toto,Terrier,1,5\r\n"
+                + "8,\"Rex, \"\"the\"\" dog\",,2,\r\n"
+                + "9,Luna,Poodle,1,-3\r\n"
+                + "10,Bella,Poodle,9,3\r\n"
+                + "11,Max,,0,12\r\n");
+
+        assertEquals(3, result.imported);
+        assertEquals(2, result.skipped);
+        assertEquals(0, result.failedRecord);
+        assertEquals(3, countPets());
+    }
+
+    @Test
+    public void importPets_stopsAtUnterminatedQuote() throws IOException {
+        PetCsvImporter.Result result = importCsv(2, "name,gender\n"
+                + "Toto,1\n"
+                + "Rex,2\n"
+                + "Max,0\n"
+                + "\"Bella,1\n"
+                + "Luna,2\n");
+
+        //The chunk committed before and the pet read since are kept
+        assertEquals(3, result.imported);
+        assertEquals(0, result.skipped);
+        assertEquals(5, result.failedRecord);
+        assertEquals(3, countPets());
+    }
+
+    private PetCsvImporter.Result importCsv(int chunkSize, String csv) throws IOException {
+        return new PetCsvImporter(mResolver, chunkSize).importPets(
+                new ByteArrayInputStream(csv.getBytes("UTF-8")), null);
+    }
+
+    private int countPets() {
+        Cursor cursor = mProvider.query(PetEntry.CONTENT_URI, new String[] { PetEntry._ID },
+                null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
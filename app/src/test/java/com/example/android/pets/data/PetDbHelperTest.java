@@ -0,0 +1,219 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetChangeEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetStatsEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests of the schema steps of {@link PetDbHelper}, on databases made the way older
+ * versions of the app left them, read through a {@link PetProvider}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 21)
+public class PetDbHelperTest {
+
+    private PetProvider mProvider;
+    private PetDbHelper mDbHelper;
+
+    @Before
+    public void setUp() {
+        RuntimeEnvironment.application.deleteDatabase(PetDbHelper.DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        if (mProvider != null) {
+            mProvider.shutdown();
+        }
+        if (mDbHelper != null) {
+            mDbHelper.close();
+        }
+        RuntimeEnvironment.application.deleteDatabase(PetDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void upgradeFromVersion4_movesBreedsToTheirTable() {
+        SQLiteDatabase v4 = createDatabase(4);
+        insertV4Pet(v4, "Toto", "Terrier", PetEntry.GENDER_MALE, 5);
+        insertV4Pet(v4, "Rex", "Terrier", PetEntry.GENDER_FEMALE, 7);
+        insertV4Pet(v4, "Bella", null, PetEntry.GENDER_UNKNOWN, 3);
+        insertV4Pet(v4, "Max", "Poodle", PetEntry.GENDER_MALE, 10);
+        long goneId = insertV4Pet(v4, "Gone", "Beagle", PetEntry.GENDER_MALE, 1);
+        v4.delete(PetEntry.TABLE_NAME, PetEntry._ID + "=" + goneId, null);
+        v4.close();
+
+        openProvider();
+
+        assertEquals(Arrays.asList("1 Toto Terrier", "2 Rex Terrier", "3 Bella null", "4 Max Poodle"),
+                readRows(mProvider.query(PetEntry.CONTENT_URI, new String[] { PetEntry._ID,
+                        PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED }, null, null, PetEntry._ID)));
+
+        //Each breed once, and the pets point at theirs
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        assertEquals(Arrays.asList("Poodle", "Terrier"), readRows(db.rawQuery(
+                "SELECT name FROM breeds ORDER BY name", null)));
+        assertEquals(Arrays.asList("Toto Terrier", "Rex Terrier", "Bella null", "Max Poodle"),
+                readRows(db.rawQuery("SELECT pets.name, breeds.name FROM pets"
+                        + " LEFT JOIN breeds ON breeds._id = pets.breed_id ORDER BY pets._id", null)));
+
+        //The stats are the same as before, and still kept up to date
+        assertEquals(Arrays.asList("0 1 3", "1 2 15", "2 1 7"),
+                readRows(mProvider.query(PetStatsEntry.CONTENT_GENDER_URI, new String[] {
+                        PetStatsEntry.COLUMN_GENDER, PetStatsEntry.COLUMN_PET_COUNT,
+                        PetStatsEntry.COLUMN_TOTAL_WEIGHT }, null, null, null)));
+        assertEquals(Arrays.asList("Terrier 2", " 1", "Poodle 1"),
+                readRows(mProvider.query(PetStatsEntry.CONTENT_BREED_URI, new String[] {
+                        PetStatsEntry.COLUMN_BREED, PetStatsEntry.COLUMN_PET_COUNT }, null, null, null)));
+
+        //The full-text index reads the breed names through the new view
+        assertEquals(Arrays.asList("Rex", "Toto"), search("terr"));
+        assertEquals(Arrays.asList("Max"), search("max poo"));
+
+        //_IDs go on after the deleted pet, and the change log starts at the upgrade
+        long version = readVersion(PetChangeEntry.CONTENT_URI);
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Luna");
+        values.put(PetEntry.COLUMN_PET_BREED, "Poodle");
+        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_FEMALE);
+        assertEquals(goneId + 1, Long.parseLong(
+                mProvider.insert(PetEntry.CONTENT_URI, values).getLastPathSegment()));
+        assertEquals(Arrays.asList(PetChangeEntry.CHANGE_RESET + " null"),
+                readRows(mProvider.query(PetChangeEntry.buildChangesUri(0, 10), new String[] {
+                        PetChangeEntry.COLUMN_CHANGE, PetChangeEntry.COLUMN_PET_ID }, null, null, null)));
+        assertEquals(Arrays.asList(PetChangeEntry.CHANGE_INSERT + " " + (goneId + 1)),
+                readRows(mProvider.query(PetChangeEntry.buildChangesUri(version, 10), new String[] {
+                        PetChangeEntry.COLUMN_CHANGE, PetChangeEntry.COLUMN_PET_ID }, null, null, null)));
+        assertEquals(Arrays.asList("Luna", "Max"), search("poodle"));
+    }
+
+    @Test
+    public void changeLog_compactsPastItsSize() {
+        openProvider();
+
+        //Version 1 stands for the pets before the log, each insert takes the next one
+        int pets = PetDbHelper.CHANGE_LOG_SIZE + PetDbHelper.CHANGE_LOG_COMPACT_INTERVAL;
+        ContentValues[] values = new ContentValues[pets];
+        for (int i = 0; i < pets; i++) {
+            values[i] = new ContentValues();
+            values[i].put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+            values[i].put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+        }
+        assertEquals(pets, mProvider.bulkInsert(PetEntry.CONTENT_URI, values));
+        long version = readVersion(PetChangeEntry.CONTENT_URI);
+        assertEquals(pets + 1, version);
+
+        //Compacted when the version reached the last multiple of the interval
+        long compactedAt = version - version % PetDbHelper.CHANGE_LOG_COMPACT_INTERVAL;
+        long floor = compactedAt - PetDbHelper.CHANGE_LOG_SIZE;
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        assertEquals(floor, mDbHelper.getChangeLogFloor(db));
+        assertEquals(Arrays.asList(String.valueOf(version - floor)), readRows(db.rawQuery(
+                "SELECT count(*) FROM " + PetChangeEntry.TABLE_NAME, null)));
+
+        //From the floor on the changes are all there, the first one right after it
+        assertEquals(Arrays.asList((floor + 1) + " " + PetChangeEntry.CHANGE_INSERT),
+                readRows(mProvider.query(PetChangeEntry.buildChangesUri(floor, 1), new String[] {
+                        PetChangeEntry.COLUMN_VERSION, PetChangeEntry.COLUMN_CHANGE }, null, null, null)));
+
+        //Below it some were dropped: a reset to the current version, never part of the changes
+        assertEquals(Arrays.asList(version + " " + PetChangeEntry.CHANGE_RESET),
+                readRows(mProvider.query(PetChangeEntry.buildChangesUri(floor - 1, 1), new String[] {
+                        PetChangeEntry.COLUMN_VERSION, PetChangeEntry.COLUMN_CHANGE }, null, null, null)));
+        assertEquals(Arrays.asList(version + " " + PetChangeEntry.CHANGE_RESET),
+                readRows(mProvider.query(PetChangeEntry.buildChangesUri(2, 100), new String[] {
+                        PetChangeEntry.COLUMN_VERSION, PetChangeEntry.COLUMN_CHANGE }, null, null, null)));
+    }
+
+    /**
+     * Make the database of the given version with the steps that made it then,
+     * and leave it open to add rows the way that version did.
+     */
+    private static SQLiteDatabase createDatabase(int version) {
+        File path = RuntimeEnvironment.application.getDatabasePath(PetDbHelper.DATABASE_NAME);
+        path.getParentFile().mkdirs();
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(path, null);
+
+        //The version 1 table, as PetDbHelper.onCreate() makes it
+        db.execSQL("CREATE TABLE " + PetEntry.TABLE_NAME + " ("
+                + PetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL, "
+                + PetEntry.COLUMN_PET_BREED + " TEXT, "
+                + PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, "
+                + PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0);");
+        new PetDbHelper(RuntimeEnvironment.application).onUpgrade(db, 1, version);
+        db.setVersion(version);
+        return db;
+    }
+
+    private static long insertV4Pet(SQLiteDatabase db, String name, String breed, int gender, int weight) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, name);
+        values.put(PetEntry.COLUMN_PET_BREED, breed);
+        values.put(PetEntry.COLUMN_PET_GENDER, gender);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+        return db.insertOrThrow(PetEntry.TABLE_NAME, null, values);
+    }
+
+    private void openProvider() {
+        mProvider = new PetProvider();
+        mProvider.attachInfo(RuntimeEnvironment.application, null);
+        mDbHelper = new PetDbHelper(RuntimeEnvironment.application);
+    }
+
+    private List<String> search(String words) {
+        return readRows(mProvider.query(PetEntry.buildSearchUri(words, 10),
+                new String[] { PetEntry.COLUMN_PET_NAME }, null, null, null));
+    }
+
+    private long readVersion(Uri uri) {
+        Cursor cursor = mProvider.query(uri, null, null, null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getLong(cursor.getColumnIndexOrThrow(PetChangeEntry.COLUMN_VERSION));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns each row as its values separated by spaces, and closes the cursor.
+     */
+    private static List<String> readRows(Cursor cursor) {
+        List<String> rows = new ArrayList<String>();
+        try {
+            while (cursor.moveToNext()) {
+                StringBuilder row = new StringBuilder();
+                for (int column = 0; column < cursor.getColumnCount(); column++) {
+                    if (column > 0) {
+                        row.append(' ');
+                    }
+                    row.append(cursor.getString(column));
+                }
+                rows.add(row.toString());
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+}
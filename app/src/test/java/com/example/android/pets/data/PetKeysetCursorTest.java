@@ -0,0 +1,209 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link PetKeysetCursor} through {@link PetEntry#buildBlocksUri()}, against the
+ * rows of a plain query in _ID order.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 21)
+public class PetKeysetCursorTest {
+
+    // Four blocks once every tenth pet is deleted, the last one partly filled
+    private static final int ROWS = 3 * PetKeysetCursor.BLOCK_SIZE + 100;
+
+    private static final String[] PROJECTION = {
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_WEIGHT };
+
+    private PetProvider mProvider;
+
+    // _ID and name of each pet, in _ID order
+    private List<Long> mIds;
+    private List<String> mNames;
+
+    @Before
+    public void setUp() {
+        RuntimeEnvironment.application.deleteDatabase(PetDbHelper.DATABASE_NAME);
+        mProvider = new PetProvider();
+        mProvider.attachInfo(RuntimeEnvironment.application, null);
+
+        ContentValues[] pets = new ContentValues[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+            values.put(PetEntry.COLUMN_PET_BREED, i % 3 == 0 ? null : "Breed " + (i % 7));
+            values.put(PetEntry.COLUMN_PET_GENDER, i % 3);
+            values.put(PetEntry.COLUMN_PET_WEIGHT, i % 50);
+            pets[i] = values;
+        }
+        assertEquals(ROWS, mProvider.bulkInsert(PetEntry.CONTENT_URI, pets));
+
+        //Leave gaps in the _IDs, so positions and _IDs differ
+        for (int i = 0; i < ROWS; i += 10) {
+            mProvider.delete(ContentUris.withAppendedId(PetEntry.CONTENT_URI, i + 1), null, null);
+        }
+
+        mIds = new ArrayList<Long>();
+        mNames = new ArrayList<String>();
+        Cursor cursor = mProvider.query(PetEntry.CONTENT_URI, PROJECTION, null, null, PetEntry._ID);
+        try {
+            while (cursor.moveToNext()) {
+                mNames.add(cursor.getString(0));
+                mIds.add(cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mProvider.shutdown();
+        RuntimeEnvironment.application.deleteDatabase(PetDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void randomPositions() {
+        Cursor cursor = queryBlocks();
+        try {
+            assertEquals(mIds.size(), cursor.getCount());
+            Random random = new Random(42);
+            for (int i = 0; i < 200; i++) {
+                int position = random.nextInt(mIds.size());
+                assertTrue(cursor.moveToPosition(position));
+                assertRow(cursor, position);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void backwardFromTheLast() {
+        Cursor cursor = queryBlocks();
+        try {
+            assertTrue(cursor.moveToLast());
+            assertRow(cursor, mIds.size() - 1);
+            assertFalse(cursor.moveToNext());
+
+            assertTrue(cursor.moveToLast());
+            for (int position = mIds.size() - 1; position >= 0; position--) {
+                assertEquals(position, cursor.getPosition());
+                assertRow(cursor, position);
+                cursor.moveToPrevious();
+            }
+            assertTrue(cursor.isBeforeFirst());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void jumpsFromEitherSide() {
+        Cursor cursor = queryBlocks();
+        try {
+            //Block 2 from the end, then block 1 from the start, then the first row of block 3
+            assertTrue(cursor.moveToPosition(2 * PetKeysetCursor.BLOCK_SIZE + 5));
+            assertRow(cursor, 2 * PetKeysetCursor.BLOCK_SIZE + 5);
+            assertTrue(cursor.moveToPosition(PetKeysetCursor.BLOCK_SIZE));
+            assertRow(cursor, PetKeysetCursor.BLOCK_SIZE);
+            assertTrue(cursor.moveToPosition(3 * PetKeysetCursor.BLOCK_SIZE));
+            assertRow(cursor, 3 * PetKeysetCursor.BLOCK_SIZE);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void leavesOutInsertedPets() {
+        Cursor cursor = queryBlocks();
+        try {
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_NAME, "Late");
+            values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+            mProvider.insert(PetEntry.CONTENT_URI, values);
+
+            assertEquals(mIds.size(), cursor.getCount());
+            int position = 0;
+            while (cursor.moveToNext()) {
+                assertRow(cursor, position++);
+            }
+            assertEquals(mIds.size(), position);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void skipsDeletedPets() {
+        Cursor cursor = queryBlocks();
+        try {
+            assertTrue(cursor.moveToFirst());
+            long deletedId = mIds.get(2 * PetKeysetCursor.BLOCK_SIZE + 10);
+            assertEquals(1, mProvider.delete(ContentUris.withAppendedId(PetEntry.CONTENT_URI, deletedId),
+                    null, null));
+
+            //The rows after it shift up by one, and end one early
+            List<Long> read = new ArrayList<Long>();
+            do {
+                read.add(cursor.getLong(1));
+            } while (cursor.moveToNext());
+            List<Long> expected = new ArrayList<Long>(mIds);
+            expected.remove(Long.valueOf(deletedId));
+            assertEquals(expected, read);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesExpressions() {
+        mProvider.query(PetEntry.buildBlocksUri(), new String[] { "count(*)" }, null, null, null);
+    }
+
+    @Test
+    public void plainQueryKeepsExpressions() {
+        Cursor cursor = mProvider.query(PetEntry.CONTENT_URI, new String[] { "count(*)" },
+                null, null, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals(mIds.size(), cursor.getInt(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Cursor queryBlocks() {
+        return mProvider.query(PetEntry.buildBlocksUri(), PROJECTION, null, null, null);
+    }
+
+    private void assertRow(Cursor cursor, int position) {
+        assertEquals(mNames.get(position), cursor.getString(0));
+        assertEquals((long) mIds.get(position), cursor.getLong(1));
+    }
+}
@@ -0,0 +1,237 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetChangeEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetStatsEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link PetProvider} on Robolectric's SQLite, through the provider's own methods.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 21)
+public class PetProviderTest {
+
+    private static final int SEARCH_LIMIT = 100;
+
+    private PetProvider mProvider;
+
+    @Before
+    public void setUp() {
+        RuntimeEnvironment.application.deleteDatabase(PetDbHelper.DATABASE_NAME);
+        mProvider = new PetProvider();
+        mProvider.attachInfo(RuntimeEnvironment.application, null);
+    }
+
+    @After
+    public void tearDown() {
+        mProvider.shutdown();
+        RuntimeEnvironment.application.deleteDatabase(PetDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void splitSearchWords_foldsAsciiOnly() {
+        assertArrayEquals(new String[] { "émile", "terrier" },
+                PetEntry.splitSearchWords("émile TERRIER"));
+        assertArrayEquals(new String[] { "Émile", "a", "b" },
+                PetEntry.splitSearchWords("Émile \"a\" -b*"));
+    }
+
+    @Test
+    public void search_findsNonAsciiNameAsTyped() {
+        insertPet("Émile", "Caniche");
+        insertPet("Emile", "Terrier");
+        insertPet("Zoé", null);
+
+        assertEquals(Arrays.asList("Émile"), search("Émile"));
+        assertEquals(Arrays.asList("Émile"), search("Ém"));
+        assertEquals(Arrays.asList("Emile"), search("emile"));
+        assertEquals(Arrays.asList("Zoé"), search("ZO"));
+        //Like the index, only ASCII letters are folded: "É" never matches "é"
+        assertEquals(new ArrayList<String>(), search("ZOÉ"));
+    }
+
+    @Test
+    public void search_matchesEveryWordOnNameOrBreed() {
+        insertPet("Toto", "Terrier");
+        insertPet("Terry", "Poodle");
+        insertPet("Rex", "Terrier");
+
+        //Pets whose name starts with the first word come first
+        assertEquals(Arrays.asList("Terry", "Rex", "Toto"), search("ter"));
+        assertEquals(Arrays.asList("Toto"), search("terrier to"));
+        assertEquals(new ArrayList<String>(), search("\"*"));
+    }
+
+    @Test
+    public void truncate_startsOverWithoutReusingIds() throws Exception {
+        insertPet("Toto", "Terrier");
+        long lastId = insertPet("Rex", "Poodle");
+        long truncatedVersion = getChangeVersion();
+
+        assertEquals(2, mProvider.delete(PetEntry.CONTENT_URI, null, null));
+        mProvider.awaitMaintenance();
+
+        PetDbHelper dbHelper = new PetDbHelper(RuntimeEnvironment.application);
+        try {
+            SQLiteDatabase db = dbHelper.getReadableDatabase();
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, "sqlite_master", "name GLOB '*trash*'"));
+            assertEquals(3, DatabaseUtils.queryNumEntries(db, "sqlite_master", "type = 'index' AND name IN (?, ?, ?)",
+                    new String[] { PetDbHelper.INDEX_PET_NAME, PetDbHelper.INDEX_PET_BREED,
+                            PetDbHelper.INDEX_PET_GENDER_WEIGHT }));
+        } finally {
+            dbHelper.close();
+        }
+
+        //Nothing before the truncate can be replayed
+        assertChanges(truncatedVersion, PetChangeEntry.CHANGE_RESET, 0);
+
+        long version = getChangeVersion();
+        long id = insertPet("Bella", "Terrier");
+        assertTrue(id > lastId);
+        assertChanges(version, PetChangeEntry.CHANGE_INSERT, id);
+
+        assertEquals(Arrays.asList("Bella"), search("terrier"));
+        assertEquals(new ArrayList<String>(), search("toto"));
+        assertEquals(Arrays.asList(PetEntry.GENDER_UNKNOWN + ":1"), readStats(PetStatsEntry.CONTENT_GENDER_URI));
+        assertEquals(Arrays.asList("Terrier:1"), readStats(PetStatsEntry.CONTENT_BREED_URI));
+    }
+
+    @Test
+    public void deleteAndUpdate_dropUnusedBreeds() {
+        long toto = insertPet("Toto", "Terrier");
+        long rex = insertPet("Rex", "Poodle");
+        long max = insertPet("Max", "Poodle");
+
+        mProvider.delete(ContentUris.withAppendedId(PetEntry.CONTENT_URI, toto), null, null);
+        assertEquals(Arrays.asList("Poodle"), readBreeds());
+
+        //Still Max's breed
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_BREED, "Beagle");
+        mProvider.update(ContentUris.withAppendedId(PetEntry.CONTENT_URI, rex), values, null, null);
+        assertEquals(Arrays.asList("Beagle", "Poodle"), readBreeds());
+
+        values.putNull(PetEntry.COLUMN_PET_BREED);
+        mProvider.update(ContentUris.withAppendedId(PetEntry.CONTENT_URI, max), values, null, null);
+        assertEquals(Arrays.asList("Beagle"), readBreeds());
+
+        //Other changes leave the breeds alone
+        values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 9);
+        mProvider.update(PetEntry.CONTENT_URI, values, null, null);
+        assertEquals(Arrays.asList("Beagle"), readBreeds());
+        assertEquals(Arrays.asList(":1", "Beagle:1"), readStats(PetStatsEntry.CONTENT_BREED_URI));
+    }
+
+    private List<String> readBreeds() {
+        PetDbHelper dbHelper = new PetDbHelper(RuntimeEnvironment.application);
+        try {
+            Cursor cursor = dbHelper.getReadableDatabase().rawQuery("SELECT "
+                    + PetContract.BreedEntry.COLUMN_BREED_NAME + " FROM " + PetContract.BreedEntry.TABLE_NAME
+                    + " ORDER BY " + PetContract.BreedEntry.COLUMN_BREED_NAME, null);
+            List<String> breeds = new ArrayList<String>();
+            try {
+                while (cursor.moveToNext()) {
+                    breeds.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+            return breeds;
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    private long getChangeVersion() {
+        //Without a version, the log answers with the current one
+        Cursor cursor = mProvider.query(PetChangeEntry.CONTENT_URI, null, null, null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getLong(cursor.getColumnIndexOrThrow(PetChangeEntry.COLUMN_VERSION));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Check that the only change since the version is the given one.
+     */
+    private void assertChanges(long sinceVersion, int change, long petId) {
+        Cursor cursor = mProvider.query(PetChangeEntry.buildChangesUri(sinceVersion, SEARCH_LIMIT),
+                new String[] { PetChangeEntry.COLUMN_CHANGE, PetChangeEntry.COLUMN_PET_ID }, null, null, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals(change, cursor.getInt(0));
+            assertEquals(petId, cursor.getLong(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the rows of a stats URI as "gender or breed:count".
+     */
+    private List<String> readStats(Uri uri) {
+        Cursor cursor = mProvider.query(uri, null, null, null, null);
+        List<String> rows = new ArrayList<String>();
+        try {
+            int key = cursor.getColumnIndexOrThrow(uri.equals(PetStatsEntry.CONTENT_GENDER_URI)
+                    ? PetStatsEntry.COLUMN_GENDER : PetStatsEntry.COLUMN_BREED);
+            int count = cursor.getColumnIndexOrThrow(PetStatsEntry.COLUMN_PET_COUNT);
+            while (cursor.moveToNext()) {
+                rows.add(cursor.getString(key) + ":" + cursor.getInt(count));
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    private long insertPet(String name, String breed) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, name);
+        values.put(PetEntry.COLUMN_PET_BREED, breed);
+        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 5);
+        return Long.parseLong(mProvider.insert(PetEntry.CONTENT_URI, values).getLastPathSegment());
+    }
+
+    private List<String> search(String words) {
+        Cursor cursor = mProvider.query(PetEntry.buildSearchUri(words, SEARCH_LIMIT),
+                new String[] { PetEntry._ID, PetEntry.COLUMN_PET_NAME }, null, null, null);
+        List<String> names = new ArrayList<String>();
+        try {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return names;
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Measures reading every pet through a cursor of the PETS URI, against reading them
+ * from a {@link PetContract#METHOD_EXPORT_PACKED} export with {@link PetPackedReader}.
+ * This one runs on a device: the export writes into a real pipe from a worker thread.
+ * The provider is in the same process, so neither path pays for Binder calls here;
+ * across processes the cursor also pays one for each window it fills.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BulkReadBenchmark {
+
+    private static final String LOG_TAG = BulkReadBenchmark.class.getSimpleName();
+
+    private static final String DEFAULT_ROWS = "100000";
+
+    private static final int RUNS = 10;
+    private static final int WARM_UP_RUNS = 2;
+
+    private static final int WRITE_CHUNK = 1000;
+
+    private static final String[] PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT };
+
+    private Context mContext;
+    private PetProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(PetDbHelper.DATABASE_NAME);
+        mProvider = new PetProvider();
+        mProvider.attachInfo(mContext, null);
+    }
+
+    @After
+    public void tearDown() {
+        mProvider.shutdown();
+        mContext.deleteDatabase(PetDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void cursorAgainstPacked() throws IOException {
+        String rowsArgument = InstrumentationRegistry.getArguments().getString("benchmark.rows", DEFAULT_ROWS);
+        int inserted = 0;
+        for (String size : rowsArgument.split(",")) {
+            int rows = Integer.parseInt(size.trim());
+            for (; inserted < rows; inserted += WRITE_CHUNK) {
+                mProvider.bulkInsert(PetEntry.CONTENT_URI, newPets(inserted, Math.min(WRITE_CHUNK, rows - inserted)));
+            }
+
+            LatencyRecorder cursor = new LatencyRecorder("cursor, all pets");
+            LatencyRecorder packed = new LatencyRecorder("packed export, all pets");
+            for (int run = 0; run < WARM_UP_RUNS + RUNS; run++) {
+                long start = System.nanoTime();
+                assertEquals(rows, readCursor());
+                long cursorNanos = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                assertEquals(rows, readPacked());
+                long packedNanos = System.nanoTime() - start;
+
+                if (run >= WARM_UP_RUNS) {
+                    cursor.record(cursorNanos);
+                    packed.record(packedNanos);
+                }
+            }
+            Log.i(LOG_TAG, cursor.report(rows));
+            Log.i(LOG_TAG, packed.report(rows));
+        }
+    }
+
+    /**
+     * Read every column of every pet, returns the number of pets read.
+     */
+    private int readCursor() {
+        Cursor cursor = mProvider.query(PetEntry.CONTENT_URI, PROJECTION, null, null, null);
+        int count = 0;
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getLong(0);
+                cursor.getString(1);
+                cursor.getString(2);
+                cursor.getInt(3);
+                cursor.getInt(4);
+                count++;
+            }
+        } finally {
+            cursor.close();
+        }
+        return count;
+    }
+
+    private int readPacked() throws IOException {
+        Bundle result = mProvider.call(PetContract.METHOD_EXPORT_PACKED, null, null);
+        assertNotNull(result);
+        ParcelFileDescriptor pipe = result.getParcelable(PetContract.KEY_EXPORT_PIPE);
+        PetPackedReader reader = new PetPackedReader(new ParcelFileDescriptor.AutoCloseInputStream(pipe));
+        int count = 0;
+        try {
+            while (reader.nextBlock()) {
+                for (int row = 0; row < reader.getCount(); row++) {
+                    reader.getId(row);
+                    reader.getName(row);
+                    reader.getBreed(row);
+                    reader.getGender(row);
+                    reader.getWeight(row);
+                }
+                count += reader.getCount();
+            }
+        } finally {
+            reader.close();
+        }
+        return count;
+    }
+
+    private static ContentValues[] newPets(int first, int count) {
+        ContentValues[] pets = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_NAME, "Pet " + (first + i));
+            values.put(PetEntry.COLUMN_PET_BREED, "Breed " + ((first + i) % 100));
+            values.put(PetEntry.COLUMN_PET_GENDER, (first + i) % 3);
+            values.put(PetEntry.COLUMN_PET_WEIGHT, 1 + (first + i) % 50);
+            pets[i] = values;
+        }
+        return pets;
+    }
+}
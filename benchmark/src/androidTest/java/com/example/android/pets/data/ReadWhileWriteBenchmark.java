@@ -0,0 +1,138 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures how long a page query of the catalog takes while another thread keeps writing pets.
+ * With write-ahead logging the reads should stay close to the reads on an idle database.
+ * This one runs on a device: Robolectric serializes all database access,
+ * so it can't show readers and writers running at the same time.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ReadWhileWriteBenchmark {
+
+    private static final String LOG_TAG = ReadWhileWriteBenchmark.class.getSimpleName();
+
+    private static final String DEFAULT_ROWS = "100000";
+
+    private static final int RUNS = 1000;
+    private static final int WARM_UP_RUNS = 100;
+    private static final int PAGE_SIZE = 50;
+
+    // Pets inserted by one bulkInsert() of the writer
+    private static final int WRITE_CHUNK = 1000;
+
+    private static final String[] PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED };
+
+    private Context mContext;
+    private PetProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(PetDbHelper.DATABASE_NAME);
+        mProvider = new PetProvider();
+        mProvider.attachInfo(mContext, null);
+    }
+
+    @After
+    public void tearDown() {
+        mProvider.shutdown();
+        mContext.deleteDatabase(PetDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void pageQueriesWhileWriting() throws InterruptedException {
+        String rowsArgument = InstrumentationRegistry.getArguments().getString("benchmark.rows", DEFAULT_ROWS);
+        // One size is enough here, take the largest
+        int rows = 0;
+        for (String size : rowsArgument.split(",")) {
+            rows = Math.max(rows, Integer.parseInt(size.trim()));
+        }
+
+        for (int inserted = 0; inserted < rows; inserted += WRITE_CHUNK) {
+            mProvider.bulkInsert(PetEntry.CONTENT_URI, newPets(inserted, Math.min(WRITE_CHUNK, rows - inserted)));
+        }
+
+        Log.i(LOG_TAG, readPages(new LatencyRecorder("page query, idle"), rows).report(rows));
+
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final LatencyRecorder writes = new LatencyRecorder("bulkInsert " + WRITE_CHUNK);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int next = 0;
+                while (writing.get()) {
+                    ContentValues[] pets = newPets(next, WRITE_CHUNK);
+                    long start = System.nanoTime();
+                    mProvider.bulkInsert(PetEntry.CONTENT_URI, pets);
+                    writes.record(System.nanoTime() - start);
+                    next += WRITE_CHUNK;
+                }
+            }
+        }, "PetWriter");
+        writer.start();
+        try {
+            Log.i(LOG_TAG, readPages(new LatencyRecorder("page query, writing"), rows).report(rows));
+        } finally {
+            writing.set(false);
+            writer.join();
+        }
+        Log.i(LOG_TAG, writes.report(rows));
+    }
+
+    /**
+     * Page queries after random ids of the filled table.
+     */
+    private LatencyRecorder readPages(LatencyRecorder recorder, int rows) {
+        Random random = new Random(42);
+        for (int run = 0; run < WARM_UP_RUNS + RUNS; run++) {
+            Uri uri = PetEntry.buildPageUri(random.nextInt(Math.max(1, rows - PAGE_SIZE)), PAGE_SIZE);
+            long start = System.nanoTime();
+            Cursor cursor = mProvider.query(uri, PROJECTION, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    cursor.getString(1);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (run >= WARM_UP_RUNS) {
+                recorder.record(System.nanoTime() - start);
+            }
+        }
+        return recorder;
+    }
+
+    private static ContentValues[] newPets(int first, int count) {
+        ContentValues[] pets = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_NAME, "Pet " + (first + i));
+            values.put(PetEntry.COLUMN_PET_BREED, "Breed " + ((first + i) % 100));
+            values.put(PetEntry.COLUMN_PET_GENDER, (first + i) % 3);
+            values.put(PetEntry.COLUMN_PET_WEIGHT, 1 + (first + i) % 50);
+            pets[i] = values;
+        }
+        return pets;
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.android.pets.data;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * {@link LatencyRecorder} collects how long each run of one operation took,
+ * and reports the throughput and latency percentiles of the runs.
+ */
+final class LatencyRecorder {
+
+    private final String mName;
+    private long[] mSamples = new long[1024];
+    private int mCount;
+
+    LatencyRecorder(String name) {
+        mName = name;
+    }
+
+    /**
+     * Add one run, in nanoseconds. Start it with System.nanoTime().
+     */
+    void record(long nanos) {
+        if (mCount == mSamples.length) {
+            mSamples = Arrays.copyOf(mSamples, mCount * 2);
+        }
+        mSamples[mCount++] = nanos;
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the latency under which the given percent of the runs finished, in nanoseconds.
+     */
+    long percentile(double percent) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(mSamples, mCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percent / 100 * mCount) - 1;
+        return sorted[Math.max(0, Math.min(index, mCount - 1))];
+    }
+
+    /**
+     * Runs per second, counting only the time spent in the runs.
+     */
+    double opsPerSecond() {
+        long total = 0;
+        for (int i = 0; i < mCount; i++) {
+            total += mSamples[i];
+        }
+        return total == 0 ? 0 : mCount * 1e9 / total;
+    }
+
+    /**
+     * One line for the report, with latencies in microseconds.
+     */
+    String report(int rows) {
+        return String.format(Locale.US,
+                "%-24s rows=%-8d runs=%-6d %10.1f ops/s  p50=%9.1fus  p90=%9.1fus  p99=%9.1fus  max=%9.1fus",
+                mName, rows, mCount, opsPerSecond(),
+                percentile(50) / 1e3, percentile(90) / 1e3, percentile(99) / 1e3, percentile(100) / 1e3);
+    }
+}
@@ -0,0 +1,356 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetChangeEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the CRUD and query paths of {@link PetProvider} on the JVM,
+ * at each table size in the benchmark.rows system property.
+ * Robolectric runs the provider on a real SQLite, but not the one of a device,
+ * so compare the numbers with each other rather than with a phone.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 21)
+public class PetProviderBenchmark {
+
+    private static final String DEFAULT_ROWS = "1000,100000,1000000";
+
+    // Runs of each single-row operation, after the warm up runs
+    private static final int RUNS = 1000;
+    private static final int WARM_UP_RUNS = 100;
+
+    // Pets inserted by one bulkInsert() when filling the table
+    private static final int FILL_CHUNK = 10000;
+
+    // Ids looked up again and again, to measure the pet cache
+    private static final int HOT_PETS = 32;
+
+    // Changes read by a change log query, like a copy of the pets catching up
+    private static final int CHANGES = 100;
+
+    private static final String[] PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT };
+
+    private final Random mRandom = new Random(42);
+
+    private PetProvider mProvider;
+
+    @Before
+    public void setUp() {
+        RuntimeEnvironment.application.deleteDatabase(PetDbHelper.DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        if (mProvider != null) {
+            mProvider.shutdown();
+        }
+        RuntimeEnvironment.application.deleteDatabase(PetDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void crudAndQueries() {
+        for (String rows : System.getProperty("benchmark.rows", DEFAULT_ROWS).split(",")) {
+            benchmark(Integer.parseInt(rows.trim()));
+        }
+    }
+
+    private void benchmark(int rows) {
+        if (mProvider != null) {
+            mProvider.shutdown();
+        }
+        RuntimeEnvironment.application.deleteDatabase(PetDbHelper.DATABASE_NAME);
+        mProvider = new PetProvider();
+        mProvider.attachInfo(RuntimeEnvironment.application, null);
+
+        fill(rows);
+        System.out.println();
+
+        // Reads first, while the ids are still 1..rows
+        System.out.println(lookup(rows, rows).report(rows));
+        System.out.println(lookup(rows, HOT_PETS).report(rows));
+        System.out.println(firstPage().report(rows));
+        System.out.println(filteredPage().report(rows));
+        System.out.println(fullTable(rows).report(rows));
+        System.out.println(randomPosition(rows).report(rows));
+        columnStore(rows);
+
+        System.out.println(insert().report(rows));
+        System.out.println(update(rows).report(rows));
+        System.out.println(changes().report(rows));
+        System.out.println(delete(rows).report(rows));
+    }
+
+    private void fill(int rows) {
+        LatencyRecorder recorder = new LatencyRecorder("bulkInsert " + FILL_CHUNK);
+        for (int inserted = 0; inserted < rows; inserted += FILL_CHUNK) {
+            ContentValues[] chunk = new ContentValues[Math.min(FILL_CHUNK, rows - inserted)];
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] = newPet(inserted + i);
+            }
+            long start = System.nanoTime();
+            mProvider.bulkInsert(PetEntry.CONTENT_URI, chunk);
+            recorder.record(System.nanoTime() - start);
+        }
+        System.out.println(recorder.report(rows));
+    }
+
+    /**
+     * PET_ID queries of random pets among the first range ids.
+     */
+    private LatencyRecorder lookup(int rows, int range) {
+        LatencyRecorder recorder = new LatencyRecorder(range < rows ? "query PET_ID (hot)" : "query PET_ID");
+        for (int run = 0; run < WARM_UP_RUNS + RUNS; run++) {
+            Uri uri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, 1 + mRandom.nextInt(range));
+            long start = System.nanoTime();
+            Cursor cursor = mProvider.query(uri, PROJECTION, null, null, null);
+            try {
+                assertEquals(1, cursor.getCount());
+                cursor.moveToFirst();
+                cursor.getString(1);
+            } finally {
+                cursor.close();
+            }
+            if (run >= WARM_UP_RUNS) {
+                recorder.record(System.nanoTime() - start);
+            }
+        }
+        return recorder;
+    }
+
+    /**
+     * The first page of the catalog.
+     */
+    private LatencyRecorder firstPage() {
+        LatencyRecorder recorder = new LatencyRecorder("query first page");
+        Uri uri = PetEntry.buildPageUri(0, 50);
+        for (int run = 0; run < WARM_UP_RUNS + RUNS; run++) {
+            long start = System.nanoTime();
+            readAll(mProvider.query(uri, PROJECTION, null, null, null));
+            if (run >= WARM_UP_RUNS) {
+                recorder.record(System.nanoTime() - start);
+            }
+        }
+        return recorder;
+    }
+
+    /**
+     * The first page of the male pets from 10 kg, a search of the gender and weight index.
+     */
+    private LatencyRecorder filteredPage() {
+        LatencyRecorder recorder = new LatencyRecorder("query gender + weight page");
+        Uri uri = PetEntry.buildPageUri(PetEntry.buildWeightUri(
+                PetEntry.buildGenderUri(PetEntry.GENDER_MALE), 10, null), 0, 50);
+        for (int run = 0; run < WARM_UP_RUNS + RUNS; run++) {
+            long start = System.nanoTime();
+            readAll(mProvider.query(uri, PROJECTION, null, null, null));
+            if (run >= WARM_UP_RUNS) {
+                recorder.record(System.nanoTime() - start);
+            }
+        }
+        return recorder;
+    }
+
+    /**
+     * The whole table, reading every row. Fewer runs as the table grows.
+     */
+    private LatencyRecorder fullTable(int rows) {
+        LatencyRecorder recorder = new LatencyRecorder("query PETS (all rows)");
+        int runs = Math.max(3, Math.min(RUNS, 1000000 / rows));
+        for (int run = 0; run < 1 + runs; run++) {
+            long start = System.nanoTime();
+            int count = readAll(mProvider.query(PetEntry.CONTENT_URI, PROJECTION, null, null, null));
+            if (run >= 1) {
+                recorder.record(System.nanoTime() - start);
+            }
+            assertEquals(rows, count);
+        }
+        return recorder;
+    }
+
+    /**
+     * Moves to random rows of one cursor over the whole table, like scrolling a long list
+     * by dragging its scrollbar. The warm-up jumps also learn where the blocks start.
+     */
+    private LatencyRecorder randomPosition(int rows) {
+        LatencyRecorder recorder = new LatencyRecorder("moveToPosition PETS blocks (random)");
+        Cursor cursor = mProvider.query(PetEntry.buildBlocksUri(), PROJECTION, null, null, null);
+        try {
+            assertEquals(rows, cursor.getCount());
+            cursor.moveToLast();
+            for (int run = 0; run < WARM_UP_RUNS + RUNS; run++) {
+                int position = mRandom.nextInt(rows);
+                long start = System.nanoTime();
+                cursor.moveToPosition(position);
+                cursor.getString(1);
+                if (run >= WARM_UP_RUNS) {
+                    recorder.record(System.nanoTime() - start);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return recorder;
+    }
+
+    /**
+     * Loads the column store through a ContentResolver, then times scans over it:
+     * a filtered count, a filtered sum and a count per breed.
+     */
+    private void columnStore(int rows) {
+        ShadowContentResolver.registerProvider(PetContract.CONTENT_AUTHORITY, mProvider);
+        PetColumnStore store = new PetColumnStore(RuntimeEnvironment.application.getContentResolver());
+
+        LatencyRecorder load = new LatencyRecorder("PetColumnStore load");
+        long loadStart = System.nanoTime();
+        store.load();
+        load.record(System.nanoTime() - loadStart);
+        assertEquals(rows, store.size());
+        System.out.println(load.report(rows));
+
+        PetColumnStore.Filter filter = PetColumnStore.where(PetEntry.GENDER_MALE, 10, 30);
+        int[] breedCounts = new int[store.getBreedCount()];
+        LatencyRecorder count = new LatencyRecorder("PetColumnStore count");
+        LatencyRecorder sum = new LatencyRecorder("PetColumnStore sumWeight");
+        LatencyRecorder byBreed = new LatencyRecorder("PetColumnStore countByBreed");
+        int runs = Math.max(10, Math.min(RUNS, 10000000 / rows));
+        for (int run = 0; run < WARM_UP_RUNS + runs; run++) {
+            long start = System.nanoTime();
+            store.count(filter);
+            long counted = System.nanoTime();
+            store.sumWeight(filter);
+            long summed = System.nanoTime();
+            store.countByBreed(PetColumnStore.ALL, breedCounts);
+            if (run >= WARM_UP_RUNS) {
+                count.record(counted - start);
+                sum.record(summed - counted);
+                byBreed.record(System.nanoTime() - summed);
+            }
+        }
+        System.out.println(count.report(rows));
+        System.out.println(sum.report(rows));
+        System.out.println(byBreed.report(rows));
+    }
+
+    private LatencyRecorder insert() {
+        LatencyRecorder recorder = new LatencyRecorder("insert PETS");
+        for (int run = 0; run < WARM_UP_RUNS + RUNS; run++) {
+            ContentValues values = newPet(run);
+            long start = System.nanoTime();
+            mProvider.insert(PetEntry.CONTENT_URI, values);
+            if (run >= WARM_UP_RUNS) {
+                recorder.record(System.nanoTime() - start);
+            }
+        }
+        return recorder;
+    }
+
+    private LatencyRecorder update(int rows) {
+        LatencyRecorder recorder = new LatencyRecorder("update PET_ID");
+        for (int run = 0; run < WARM_UP_RUNS + RUNS; run++) {
+            Uri uri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, 1 + mRandom.nextInt(rows));
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_WEIGHT, mRandom.nextInt(50));
+            long start = System.nanoTime();
+            mProvider.update(uri, values, null, null);
+            if (run >= WARM_UP_RUNS) {
+                recorder.record(System.nanoTime() - start);
+            }
+        }
+        return recorder;
+    }
+
+    /**
+     * The last changes of the log, right after the updates. Should not depend on the table size.
+     */
+    private LatencyRecorder changes() {
+        LatencyRecorder recorder = new LatencyRecorder("query CHANGES (last " + CHANGES + ")");
+
+        //Without a version, the log answers with the current one
+        long version;
+        Cursor current = mProvider.query(PetChangeEntry.CONTENT_URI, null, null, null, null);
+        try {
+            current.moveToFirst();
+            version = current.getLong(current.getColumnIndexOrThrow(PetChangeEntry.COLUMN_VERSION));
+        } finally {
+            current.close();
+        }
+
+        Uri uri = PetChangeEntry.buildChangesUri(version - CHANGES, CHANGES);
+        for (int run = 0; run < WARM_UP_RUNS + RUNS; run++) {
+            long start = System.nanoTime();
+            int count = readAll(mProvider.query(uri, null, null, null, null));
+            if (run >= WARM_UP_RUNS) {
+                recorder.record(System.nanoTime() - start);
+            }
+            //Fewer when a pet was updated twice
+            assertTrue(count > 0 && count <= CHANGES);
+        }
+        return recorder;
+    }
+
+    /**
+     * Deletes pets from the end of the filled ids, so each run deletes a pet that exists.
+     */
+    private LatencyRecorder delete(int rows) {
+        LatencyRecorder recorder = new LatencyRecorder("delete PET_ID");
+        int runs = Math.min(WARM_UP_RUNS + RUNS, rows);
+        for (int run = 0; run < runs; run++) {
+            Uri uri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, rows - run);
+            long start = System.nanoTime();
+            int deleted = mProvider.delete(uri, null, null);
+            if (run >= runs - RUNS) {
+                recorder.record(System.nanoTime() - start);
+            }
+            assertEquals(1, deleted);
+        }
+        return recorder;
+    }
+
+    private static int readAll(Cursor cursor) {
+        try {
+            int count = 0;
+            while (cursor.moveToNext()) {
+                cursor.getLong(0);
+                cursor.getString(1);
+                cursor.getString(2);
+                count++;
+            }
+            return count;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private ContentValues newPet(int i) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+        values.put(PetEntry.COLUMN_PET_BREED, "Breed " + (i % 100));
+        values.put(PetEntry.COLUMN_PET_GENDER, i % 3);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 1 + mRandom.nextInt(50));
+        return values;
+    }
+}